@@ -0,0 +1,114 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Reproducible data for the benchmarks.  Everything is drawn from a
+ * Random seeded with SEED, so a benchmark sees the same keys and
+ * values from run to run and release to release, and results can be
+ * compared across engines and page sizes.
+ * <p>
+ * Keys look like the URLs of a web cache, the use sdbm is put to
+ * most.  Hits and misses come from different hosts, so a miss never
+ * turns up among the keys by chance.
+ */
+public class BenchData {
+
+    public static final long SEED = 42;
+
+    private BenchData() {
+    }
+
+    /**
+     * @return n distinct URL keys of about len bytes, the nth of
+     * which is the same for any n.
+     */
+    public static byte[][] keys(int n, int len) {
+	return urls("http://example.com/",n,len,SEED);
+    }
+
+    /**
+     * @return n keys like those of keys() that none of them equal.
+     */
+    public static byte[][] misses(int n, int len) {
+	return urls("http://example.org/",n,len,SEED + 1);
+    }
+
+    private static byte[][] urls(String host, int n, int len, long seed) {
+	Random rand = new Random(seed);
+	byte[][] keys = new byte[n][];
+	StringBuffer sb = new StringBuffer();
+	for (int i=0;i<n;i++) {
+	    sb.setLength(0);
+	    // the index keeps them distinct, the rest pads them out.
+	    sb.append(host).append(i).append('/');
+	    while (sb.length() < len) {
+		sb.append((char) ('a' + rand.nextInt(26)));
+	    }
+	    keys[i] = sb.toString().getBytes();
+	}
+	return keys;
+    }
+
+    /**
+     * @return n random values of len bytes.
+     */
+    public static byte[][] values(int n, int len) {
+	Random rand = new Random(SEED + 2);
+	byte[][] vals = new byte[n][len];
+	for (int i=0;i<n;i++) {
+	    rand.nextBytes(vals[i]);
+	}
+	return vals;
+    }
+
+    /**
+     * @return n bytes of random data, for hashing.
+     */
+    public static byte[] bytes(int n) {
+	byte[] b = new byte[n];
+	new Random(SEED + 3).nextBytes(b);
+	return b;
+    }
+
+    /**
+     * @return a fresh permutation of 0..n-1, the order to visit keys in
+     * so that consecutive lookups don't hit the same page.
+     */
+    public static int[] order(int n) {
+	int[] order = new int[n];
+	for (int i=0;i<n;i++) {
+	    order[i] = i;
+	}
+	Random rand = new Random(SEED + 4);
+	for (int i=n-1;i>0;i--) {
+	    int j = rand.nextInt(i + 1);
+	    int t = order[i];
+	    order[i] = order[j];
+	    order[j] = t;
+	}
+	return order;
+    }
+
+    /**
+     * Bulk loads keys and vals into a new database name in dir,
+     * replacing any database of that name.
+     */
+    public static void load(File dir, String name, SdbmOptions options,
+			    byte[][] keys, byte[][] vals)
+	throws IOException {
+	BulkLoader loader = new BulkLoader(dir,name,options);
+	for (int i=0;i<keys.length;i++) {
+	    loader.add(keys[i],vals[i]);
+	}
+	loader.build();
+    }
+
+    /**
+     * @return the directory the benchmark databases are kept in.
+     */
+    public static File dir() {
+	return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,35 @@
+package org.solinger.sdbm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of hashing a key, per hash function and key length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"SDBM", "MURMUR3", "XXHASH64"})
+    HashFunction hash;
+
+    @Param({"4", "16", "64", "256", "1024"})
+    int keyLength;
+
+    byte[] key;
+
+    @Setup
+    public void setUp() {
+	key = BenchData.bytes(keyLength);
+    }
+
+    @Benchmark
+    public int hash() {
+	return hash.hash(key,0,key.length);
+    }
+}
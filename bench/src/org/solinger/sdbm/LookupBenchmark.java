@@ -0,0 +1,82 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of a Sdbm lookup hit, per API.  Run with -prof gc (the default
+ * bench.args) and compare gc.alloc.rate.norm: getInto should report
+ * 0 B/op, getBytes the value array and getString the key and value
+ * encodings on top.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"100000"})
+    int keys;
+
+    File dir;
+    Sdbm db;
+    byte[][] keyBytes;
+    String[] keyStrings;
+    ByteBuffer out = ByteBuffer.allocate(Sdbm.PAIRMAX);
+    int i;
+
+    @Setup
+    public void setUp() throws IOException {
+	dir = new File(System.getProperty("java.io.tmpdir"));
+	// big enough a cache to hold the whole database, we are after
+	// the cost of a hit.
+	db = new Sdbm(dir,"lookupbench","rw",
+		      new SdbmOptions().setPageCacheSize(keys / 4));
+	db.clear();
+
+	Random rand = new Random(42);
+	keyBytes = new byte[keys][];
+	keyStrings = new String[keys];
+	for (int n=0;n<keys;n++) {
+	    keyStrings[n] = "http://example.com/" + rand.nextLong();
+	    keyBytes[n] = keyStrings[n].getBytes("UTF-8");
+	    db.put(keyStrings[n], "value" + n);
+	}
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	db.clear();
+	db.close();
+    }
+
+    private int next() {
+	if (++i == keys) {
+	    i = 0;
+	}
+	return i;
+    }
+
+    @Benchmark
+    public int getInto() throws IOException {
+	byte[] k = keyBytes[next()];
+	out.clear();
+	return db.get(k,0,k.length,out);
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException {
+	return db.get(keyBytes[next()]);
+    }
+
+    @Benchmark
+    public String getString() throws IOException {
+	return db.get(keyStrings[next()]);
+    }
+}
@@ -0,0 +1,76 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Looking up batch keys at a time, with a get() each or one getAll().
+ * The page cache is kept small, so most pages come from the file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiGetBenchmark {
+
+    @Param({"50", "500"})
+    int batch;
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"64"})
+    int cachePages;
+
+    Sdbm db;
+    byte[][] hits;
+    int[] order;
+    List<byte[]> lookups = new ArrayList<byte[]>();
+    int i;
+
+    @Setup
+    public void setUp() throws IOException {
+	hits = BenchData.keys(keys,40);
+	order = BenchData.order(keys);
+	SdbmOptions options = new SdbmOptions();
+	BenchData.load(BenchData.dir(),"multiget",options,hits,
+		       BenchData.values(keys,32));
+	db = new Sdbm(BenchData.dir(),"multiget","rw",
+		      options.setPageCacheSize(cachePages));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	db.clear();
+	db.close();
+    }
+
+    private List<byte[]> next() {
+	lookups.clear();
+	for (int n=0;n<batch;n++) {
+	    if (++i == keys) {
+		i = 0;
+	    }
+	    lookups.add(hits[order[i]]);
+	}
+	return lookups;
+    }
+
+    @Benchmark
+    public void get(Blackhole bh) throws IOException {
+	for (byte[] key : next()) {
+	    bh.consume(db.get(key));
+	}
+    }
+
+    @Benchmark
+    public List<byte[]> getAll() throws IOException {
+	return db.getAll(next());
+    }
+}
@@ -0,0 +1,70 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time to open (and close) a large database read only.  After a clean
+ * close the .meta header has the count and open costs next to
+ * nothing; after a crash every page is read to count the pairs again,
+ * and with bloom the keys are hashed into a new Bloom filter as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OpenBenchmark {
+
+    @Param({"1000000"})
+    int keys;
+
+    @Param({"1024", "4096"})
+    int pageSize;
+
+    @Param({"true", "false"})
+    boolean clean;
+
+    @Param({"false", "true"})
+    boolean bloom;
+
+    SdbmOptions options;
+    File metaFile;
+
+    @Setup
+    public void setUp() throws IOException {
+	options = new SdbmOptions().setPageSize(pageSize);
+	if (bloom) {
+	    options.setBloomFilter(keys,0.01);
+	}
+	BenchData.load(BenchData.dir(),"openbench",options,
+		       BenchData.keys(keys,40),BenchData.values(keys,32));
+	// writes the .blm file.
+	new Sdbm(BenchData.dir(),"openbench","rw",options).close();
+	metaFile = new File(BenchData.dir(),"openbench" + Sdbm.METAEXT);
+	if (!clean) {
+	    // as if the last writer had crashed.
+	    Meta meta = Meta.read(metaFile);
+	    meta.clean = false;
+	    meta.write(metaFile);
+	}
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	Sdbm db = new Sdbm(BenchData.dir(),"openbench","rw",options);
+	db.clear();
+	db.close();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+	Sdbm db = new Sdbm(BenchData.dir(),"openbench","r",options);
+	int n = db.size();
+	db.close();
+	return n;
+    }
+}
@@ -0,0 +1,146 @@
+package org.solinger.sdbm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of finding a key in a full page, by a plain scan comparing the
+ * bytes of every key of the right length and by the key hashes (the
+ * fingerprints option).  The keys are all the same length, the worst
+ * case for the scan.  The hashes are worked out once per page, as a
+ * cached page is looked up many times between changes.  The cold
+ * cases look up in a page just read instead, a copy made for each
+ * lookup, which is what a miss in the page cache costs.
+ * <p>
+ * Also the cost of the page operations: get, a remove followed by a
+ * put of the same pair (which leaves the page full), and splitting a
+ * copy of the full page in two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageBenchmark {
+
+    @Param({"1024", "4096", "16384"})
+    int pageSize;
+
+    Page page;
+    Page copy;
+    Page newPage;
+    byte[][] hits;
+    int[] hitHashes;
+    byte[][] misses;
+    int[] missHashes;
+    HashFunction hf = HashFunction.SDBM;
+    int i;
+
+    @Setup
+    public void setUp() {
+	page = new Page(pageSize);
+	copy = new Page(pageSize);
+	newPage = new Page(pageSize);
+	Random rand = new Random(42);
+	java.util.ArrayList<byte[]> keys = new java.util.ArrayList<byte[]>();
+	for (;;) {
+	    byte[] key = ("http://example.com/" +
+			  (1000000 + rand.nextInt(9000000))).getBytes();
+	    byte[] val = "value".getBytes();
+	    if (!page.hasRoom(key.length + val.length)) {
+		break;
+	    }
+	    page.put(key,val);
+	    keys.add(key);
+	}
+	hits = keys.toArray(new byte[0][]);
+	hitHashes = new int[hits.length];
+	misses = new byte[hits.length][];
+	missHashes = new int[hits.length];
+	for (int n=0;n<hits.length;n++) {
+	    hitHashes[n] = hf.hash(hits[n]);
+	    misses[n] = ("http://example.org/" +
+			 (1000000 + rand.nextInt(9000000))).getBytes();
+	    missHashes[n] = hf.hash(misses[n]);
+	}
+    }
+
+    private int next() {
+	if (++i == hits.length) {
+	    i = 0;
+	}
+	return i;
+    }
+
+    @Benchmark
+    public int scanHit() {
+	byte[] k = hits[next()];
+	return page.indexOfValue(k,0,k.length);
+    }
+
+    @Benchmark
+    public int fingerprintHit() {
+	int n = next();
+	byte[] k = hits[n];
+	return page.indexOfValue(k,0,k.length,hitHashes[n],hf);
+    }
+
+    @Benchmark
+    public int scanMiss() {
+	byte[] k = misses[next()];
+	return page.indexOfValue(k,0,k.length);
+    }
+
+    @Benchmark
+    public int fingerprintMiss() {
+	int n = next();
+	byte[] k = misses[n];
+	return page.indexOfValue(k,0,k.length,missHashes[n],hf);
+    }
+
+    private Page cold() {
+	Page p = new Page(pageSize);
+	System.arraycopy(page.pag,0,p.pag,0,pageSize);
+	return p;
+    }
+
+    @Benchmark
+    public int scanCold() {
+	byte[] k = hits[next()];
+	return cold().indexOfValue(k,0,k.length);
+    }
+
+    @Benchmark
+    public int fingerprintCold() {
+	int n = next();
+	byte[] k = hits[n];
+	return cold().indexOfValue(k,0,k.length,hitHashes[n],hf);
+    }
+
+    @Benchmark
+    public byte[] get() {
+	byte[] k = hits[next()];
+	return page.get(k,0,k.length);
+    }
+
+    @Benchmark
+    public byte[] removePut() {
+	byte[] k = hits[next()];
+	byte[] v = page.remove(k,0,k.length);
+	page.put(k,v);
+	return v;
+    }
+
+    /**
+     * Includes copying the page, as splitting empties it.
+     */
+    @Benchmark
+    public Page split() {
+	System.arraycopy(page.pag,0,copy.pag,0,pageSize);
+	copy.split(newPage,1,hf);
+	return newPage;
+    }
+}
@@ -0,0 +1,98 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of get() from 1, 2, 4 and 8 threads sharing a database.
+ * Readers share the lock, so ideally the throughput grows with the
+ * threads until the cores run out.  With a cache smaller than the
+ * database (cachePages) the cache's locks come into play too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadScalingBenchmark {
+
+    @Param({"0", "1"})
+    int ioEngine;
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"0", "64"})
+    int cachePages;
+
+    Sdbm db;
+    byte[][] hits;
+
+    @Setup
+    public void setUp() throws IOException {
+	hits = BenchData.keys(keys,40);
+	SdbmOptions options = new SdbmOptions().setIoEngine(ioEngine);
+	BenchData.load(BenchData.dir(),"scalebench",options,hits,
+		       BenchData.values(keys,32));
+	options.setPageCacheSize(cachePages > 0 ? cachePages :
+				 keys * 160 / options.getPageSize() + 1);
+	db = new Sdbm(BenchData.dir(),"scalebench","r",options);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	db.close();
+	Sdbm w = new Sdbm(BenchData.dir(),"scalebench","rw");
+	w.clear();
+	w.close();
+    }
+
+    /**
+     * Each thread walks the keys in its own order.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+	int[] order;
+	int i;
+
+	@Setup
+	public void setUp(ReadScalingBenchmark b) {
+	    order = BenchData.order(b.keys);
+	    i = (int) (Thread.currentThread().getId() * 7919 % b.keys);
+	}
+
+	int next() {
+	    if (++i == order.length) {
+		i = 0;
+	    }
+	    return order[i];
+	}
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] get1(Cursor c) throws IOException {
+	return db.get(hits[c.next()]);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public byte[] get2(Cursor c) throws IOException {
+	return db.get(hits[c.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] get4(Cursor c) throws IOException {
+	return db.get(hits[c.next()]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] get8(Cursor c) throws IOException {
+	return db.get(hits[c.next()]);
+    }
+}
@@ -0,0 +1,97 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole database operations: enumerating the keys and the elements,
+ * and compacting a database left sparse by removing half its keys.
+ * The result is the time for all keys, divide by keys for the cost
+ * per pair.  scanBuffer is the size of the scans' reads, a page being
+ * the old read per page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"1024", "4096"})
+    int pageSize;
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"4096", "1048576"})
+    int scanBuffer;
+
+    @Param({"false", "true"})
+    boolean readAhead;
+
+    Sdbm db;
+    byte[][] hits;
+    byte[][] vals;
+
+    @Setup
+    public void setUp() throws IOException {
+	hits = BenchData.keys(keys,40);
+	vals = BenchData.values(keys,32);
+	SdbmOptions options = new SdbmOptions().setPageSize(pageSize).
+	    setScanBufferSize(scanBuffer).setScanReadAhead(readAhead);
+	BenchData.load(BenchData.dir(),"scanbench",options,hits,vals);
+	db = new Sdbm(BenchData.dir(),"scanbench","rw",options);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	db.clear();
+	db.close();
+    }
+
+    @Benchmark
+    public void keys(Blackhole bh) {
+	for (Enumeration en = db.keys();en.hasMoreElements();) {
+	    bh.consume(en.nextElement());
+	}
+    }
+
+    @Benchmark
+    public void elements(Blackhole bh) {
+	for (Enumeration en = db.elements();en.hasMoreElements();) {
+	    bh.consume(en.nextElement());
+	}
+    }
+
+    /**
+     * Every other key removed before each compact().
+     */
+    @State(Scope.Thread)
+    public static class Sparse {
+	Sdbm db;
+
+	@Setup(Level.Invocation)
+	public void setUp(ScanBenchmark b) throws IOException {
+	    db = b.db;
+	    for (int n=0;n<b.keys;n+=2) {
+		db.put(b.hits[n],b.vals[n]);
+	    }
+	    for (int n=0;n<b.keys;n+=2) {
+		db.remove(b.hits[n]);
+	    }
+	}
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public long compact(Sparse sparse) throws IOException {
+	return sparse.db.compact();
+    }
+}
@@ -0,0 +1,90 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sdbm get and put per io engine and page size.  get looks up a mix
+ * of present and missing keys, hitRatio of them present.  put
+ * replaces the value of a present key, so the database keeps its
+ * size.  The page cache holds the whole database unless cachePages
+ * says otherwise, to measure the code rather than the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdbmBenchmark {
+
+    @Param({"0", "1"})
+    int ioEngine;
+
+    @Param({"1024", "4096"})
+    int pageSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    double hitRatio;
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"0"})
+    int cachePages;
+
+    Sdbm db;
+    byte[][] lookups;
+    byte[][] hits;
+    byte[][] vals;
+    int[] order;
+    int i;
+
+    @Setup
+    public void setUp() throws IOException {
+	hits = BenchData.keys(keys,40);
+	vals = BenchData.values(keys,32);
+	byte[][] misses = BenchData.misses(keys,40);
+	order = BenchData.order(keys);
+
+	// every hitRatio'th lookup a hit, spread evenly.
+	lookups = new byte[keys][];
+	for (int n=0;n<keys;n++) {
+	    lookups[n] = (int) ((n + 1) * hitRatio) > (int) (n * hitRatio) ?
+		hits[order[n]] : misses[order[n]];
+	}
+
+	SdbmOptions options = new SdbmOptions().setIoEngine(ioEngine).
+	    setPageSize(pageSize);
+	BenchData.load(BenchData.dir(),"sdbmbench",options,hits,vals);
+	options.setPageCacheSize(cachePages > 0 ? cachePages :
+				 keys * 160 / pageSize + 1);
+	db = new Sdbm(BenchData.dir(),"sdbmbench","rw",options);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	db.clear();
+	db.close();
+    }
+
+    private int next() {
+	if (++i == keys) {
+	    i = 0;
+	}
+	return i;
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+	return db.get(lookups[next()]);
+    }
+
+    @Benchmark
+    public byte[] put() throws IOException {
+	int n = order[next()];
+	return db.put(hits[n],vals[n]);
+    }
+}
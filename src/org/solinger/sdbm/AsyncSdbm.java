@@ -0,0 +1,183 @@
+package org.solinger.sdbm;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sdbm operations that return at once with a CompletableFuture, run
+ * on an Executor.  A failed operation completes its future
+ * exceptionally with whatever it threw.
+ * <p>
+ * Sdbm blocks in file I/O holding only ReentrantLocks, so any executor
+ * will do, including one that starts a virtual thread per task
+ * (Executors.newVirtualThreadPerTaskExecutor() on java 21).  Without
+ * one a cached pool of daemon threads is used.  Reads run side by side
+ * as far as Sdbm's read lock lets them, writes one at a time.
+ * <p>
+ * The futures of one caller are not ordered: a get submitted after a
+ * put may run first.  Chain them when it matters.
+ */
+public class AsyncSdbm {
+
+    Sdbm sdbm;
+    Executor executor;
+    ExecutorService own;     // the default executor, shut down by close()
+
+    public AsyncSdbm(Sdbm sdbm) {
+	this.sdbm = sdbm;
+	this.own = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r,"AsyncSdbm");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	this.executor = own;
+    }
+
+    /**
+     * @param executor runs the operations, it is not shut down by
+     * close().
+     */
+    public AsyncSdbm(Sdbm sdbm, Executor executor) {
+	this.sdbm = sdbm;
+	this.executor = executor;
+    }
+
+    public Sdbm getSdbm() {
+	return sdbm;
+    }
+
+    /**
+     * An operation on the database.
+     */
+    interface Call<T> {
+	public T call() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> submit(final Call<T> c) {
+	final CompletableFuture<T> f = new CompletableFuture<T>();
+	try {
+	    executor.execute(new Runnable() {
+		    public void run() {
+			try {
+			    f.complete(c.call());
+			} catch (Throwable t) {
+			    f.completeExceptionally(t);
+			}
+		    }
+		});
+	} catch (RejectedExecutionException e) {
+	    f.completeExceptionally(e);
+	}
+	return f;
+    }
+
+    public CompletableFuture<String> getAsync(final String key) {
+	return submit(new Call<String>() {
+		public String call() throws IOException {
+		    return sdbm.get(key);
+		}
+	    });
+    }
+
+    public CompletableFuture<byte[]> getAsync(final byte[] key) {
+	return submit(new Call<byte[]>() {
+		public byte[] call() throws IOException {
+		    return sdbm.get(key);
+		}
+	    });
+    }
+
+    public CompletableFuture<Boolean> containsKeyAsync(final byte[] key) {
+	return submit(new Call<Boolean>() {
+		public Boolean call() throws IOException {
+		    return sdbm.containsKey(key);
+		}
+	    });
+    }
+
+    /**
+     * @return a future of the previous value, see Sdbm.put().
+     */
+    public CompletableFuture<String> putAsync(final String key,
+					      final String value) {
+	return submit(new Call<String>() {
+		public String call() throws IOException {
+		    return sdbm.put(key,value);
+		}
+	    });
+    }
+
+    public CompletableFuture<byte[]> putAsync(final byte[] key,
+					      final byte[] value) {
+	return submit(new Call<byte[]>() {
+		public byte[] call() throws IOException {
+		    return sdbm.put(key,value);
+		}
+	    });
+    }
+
+    public CompletableFuture<String> removeAsync(final String key) {
+	return submit(new Call<String>() {
+		public String call() throws IOException {
+		    return sdbm.remove(key);
+		}
+	    });
+    }
+
+    public CompletableFuture<byte[]> removeAsync(final byte[] key) {
+	return submit(new Call<byte[]>() {
+		public byte[] call() throws IOException {
+		    return sdbm.remove(key);
+		}
+	    });
+    }
+
+    /**
+     * Applies batch as one, see Sdbm.write(WriteBatch).
+     */
+    public CompletableFuture<Void> writeAsync(final WriteBatch batch) {
+	return submit(new Call<Void>() {
+		public Void call() throws IOException {
+		    sdbm.write(batch);
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Looks all the keys up in one task, see Sdbm.getAll().
+     *
+     * @return a future of the values in the order of the keys, null
+     * for the missing ones.
+     */
+    public CompletableFuture<List<byte[]>> multiGet
+	(final Collection<byte[]> keys) {
+	return submit(new Call<List<byte[]>>() {
+		public List<byte[]> call() throws IOException {
+		    return sdbm.getAll(keys);
+		}
+	    });
+    }
+
+    public CompletableFuture<Void> flushAsync() {
+	return submit(new Call<Void>() {
+		public Void call() throws IOException {
+		    sdbm.flush();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Shuts the default executor down once the operations submitted
+     * are done.  The Sdbm stays open, it is the caller's.
+     */
+    public void close() {
+	if (own != null) {
+	    own.shutdown();
+	}
+    }
+}
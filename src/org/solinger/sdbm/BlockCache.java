@@ -0,0 +1,510 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of block buffers sitting in front of a BlockFile.
+ * Sdbm keeps one for the .pag file and one for the .dir file.
+ * <p>
+ * The pool is striped into segments by block number, each with its own
+ * lock, so that readers working on different blocks don't contend.
+ * The locks are ReentrantLocks rather than monitors as an eviction may
+ * write to the file, and a virtual thread blocked holding a monitor
+ * pins its carrier thread.
+ * Within a segment frames are located through an int keyed chained hash
+ * table, so a hit allocates nothing, and are replaced with the CLOCK
+ * (second chance) algorithm, which approximates LRU without having to
+ * relink a list on every hit.  A miss reads the block without holding
+ * the segment.
+ * <p>
+ * Modified blocks are handed back with put().  In write-through mode
+ * they go to the file right away, as sdbm always did.  In write-back
+ * mode they are only marked dirty and reach the file when they are
+ * evicted, or on flush().
+ * <p>
+ * Frames it evicts can be kept in a SlabStore off the heap, which is
+ * then looked in on a miss before the file.
+ * <p>
+ * Each segment keeps the last few frames it evicted for the next
+ * misses to read into, so that a cache hitting its slabs doesn't make
+ * a page of garbage each time.  As readers share the pages, a frame
+ * is only recycled if nobody holds it: the pages get() and getAll()
+ * hand out are pinned until handed back with release(), and the ones
+ * given to put() that the cache didn't make are never recycled.
+ * Forgetting a release() only costs a frame.
+ * <p>
+ * The cache does not protect the contents of a block: modifying a
+ * block while others read it is up to the caller (Sdbm's write lock).
+ */
+class BlockCache {
+
+    static final int MAXSEGS = 16;
+    /** the most blocks getAll() reads at once. */
+    static final int MAXRUN = 32;
+    /** the most evicted frames a segment keeps for reuse. */
+    static final int POOL = 4;
+
+    BlockFile file;
+    int blockSize;
+    boolean writeBack;
+    boolean deferred;        // write-back for the length of a batch
+    boolean validate;        // blocks are sdbm pages, check them on load
+    int capacity;
+    Segment[] segs;
+    SlabStore slabs;         // where evicted frames go, or null
+
+    BlockCache(BlockFile file, int blockSize, int capacity, 
+	       boolean writeBack, boolean validate) {
+	this(file,blockSize,capacity,writeBack,validate,null);
+    }
+
+    BlockCache(BlockFile file, int blockSize, int capacity, 
+	       boolean writeBack, boolean validate, SlabStore slabs) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("capacity < 1: "+capacity);
+	}
+	this.file = file;
+	this.blockSize = blockSize;
+	this.writeBack = writeBack;
+	this.validate = validate;
+	this.capacity = capacity;
+	this.slabs = slabs;
+
+	// a handful of frames per segment at least, or CLOCK degenerates.
+	int n = 1;
+	while (n < MAXSEGS && n * 8 <= capacity) {
+	    n <<= 1;
+	}
+	segs = new Segment[n];
+	for (int i=0;i<n;i++) {
+	    // spread the remainder over the first segments.
+	    segs[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+	}
+    }
+
+    private static int hash(int bno) {
+	// fibonacci hashing, block numbers of a bucket trie are
+	// far from uniformly distributed.
+	return bno * 0x9E3779B9;
+    }
+
+    private Segment segment(int h) {
+	return segs[h & (segs.length - 1)];
+    }
+
+    /**
+     * @return the block numbered bno, reading it in on a miss.  It is
+     * pinned until release().
+     */
+    Page get(int bno) throws IOException {
+	int h = hash(bno);
+	Segment s = segment(h);
+	Page p = s.get(bno,h);
+	if (p != null) {
+	    return p;
+	}
+
+	p = s.frame(bno);
+	if (slabs == null || !slabs.read(bno,p.pag,true)) {
+	    file.read((long) bno * blockSize, p.pag, 0, blockSize);
+	    check(p);
+	}
+	// somebody may have beaten us to it, use theirs.
+	return s.install(p,h,false);
+    }
+
+    /**
+     * Fails on a corrupt page.  Handing back an empty one instead, as
+     * was done once, lost its pairs for good on the next put.
+     */
+    private void check(Page p) throws SdbmException {
+	if (validate && !p.isValid()) {
+	    throw new SdbmException("Corrupt page "+p.bno);
+	}
+    }
+
+    /**
+     * get() for each of bnos[0..n), which must be sorted and distinct.
+     * Each page is pinned until release().  The blocks that aren't cached are read in file order, with one
+     * read for each run of up to MAXRUN consecutive ones.
+     */
+    Page[] getAll(int[] bnos, int n) throws IOException {
+	Page[] pages = new Page[n];
+	for (int i=0;i<n;i++) {
+	    int h = hash(bnos[i]);
+	    Segment s = segment(h);
+	    Page p = s.get(bnos[i],h);
+	    if (p == null && slabs != null) {
+		p = s.frame(bnos[i]);
+		if (slabs.read(bnos[i],p.pag,true)) {
+		    p = s.install(p,h,false);
+		} else {
+		    s.recycle(p);
+		    p = null;
+		}
+	    }
+	    pages[i] = p;
+	}
+
+	byte[] run = null;
+	for (int i=0;i<n;) {
+	    if (pages[i] != null) {
+		i++;
+		continue;
+	    }
+	    int j = i + 1;
+	    while (j < n && j - i < MAXRUN && pages[j] == null &&
+		   bnos[j] == bnos[j-1] + 1) {
+		j++;
+	    }
+	    int len = (j - i) * blockSize;
+	    if (j - i > 1) {
+		if (run == null || run.length < len) {
+		    run = new byte[len];
+		}
+		file.read((long) bnos[i] * blockSize, run, 0, len);
+	    }
+	    for (int k=i;k<j;k++) {
+		int h = hash(bnos[k]);
+		Segment s = segment(h);
+		Page p = s.frame(bnos[k]);
+		if (j - i > 1) {
+		    System.arraycopy(run,(k - i) * blockSize,p.pag,0,blockSize);
+		} else {
+		    file.read((long) bnos[k] * blockSize, p.pag, 0, blockSize);
+		}
+		check(p);
+		pages[k] = s.install(p,h,false);
+	    }
+	    i = j;
+	}
+	return pages;
+    }
+
+    /**
+     * Copies block bno into b if it is cached, in memory or in the
+     * slabs.  Does not count as a use of the block.
+     *
+     * @return false if it isn't cached.
+     */
+    boolean peek(int bno, byte[] b) {
+	int h = hash(bno);
+	return segment(h).peek(bno,h,b) ||
+	    (slabs != null && slabs.read(bno,b,false));
+    }
+
+    /**
+     * Hands back a page from get() or getAll(), which mustn't be
+     * used afterwards.
+     */
+    void release(Page p) {
+	int h = hash(p.bno);
+	segment(h).release(p,h);
+    }
+
+    /**
+     * While set, modified blocks are only marked dirty whatever the
+     * write policy, so that a batch of changes writes each block once
+     * on the following flush().  Only call it holding the write lock.
+     */
+    void setDeferred(boolean deferred) {
+	this.deferred = deferred;
+    }
+
+    /**
+     * Hand back a modified block.  It stays the caller's, put() doesn't
+     * pin it nor does it release a pin.
+     */
+    void put(Page p) throws IOException {
+	int h = hash(p.bno);
+	segment(h).install(p,h,true);
+    }
+
+    /**
+     * write all dirty blocks.
+     */
+    void flush() throws IOException {
+	for (int i=0;i<segs.length;i++) {
+	    segs[i].flush();
+	}
+    }
+
+    CacheStats getStats() {
+	int size = 0;
+	long hits = 0, misses = 0, evictions = 0, writes = 0;
+	for (int i=0;i<segs.length;i++) {
+	    Segment s = segs[i];
+	    s.lock.lock();
+	    try {
+		size += s.used;
+		hits += s.hits;
+		misses += s.misses;
+		evictions += s.evictions;
+		writes += s.writes;
+	    } finally {
+		s.lock.unlock();
+	    }
+	}
+	return new CacheStats(capacity,size,hits,misses,evictions,writes);
+    }
+
+    private void write(Page p) throws IOException {
+	file.write((long) p.bno * blockSize, p.pag, 0, blockSize);
+    }
+
+    private class Segment {
+	final ReentrantLock lock = new ReentrantLock();
+	Page[] frames;
+	boolean[] ref;           // CLOCK reference bits
+	boolean[] dirty;
+	int[] pins;              // holders of the frame's page
+	boolean[] owned;         // the page was made here, may be recycled
+	int[] next;              // hash chain, -1 terminated
+	int[] heads;             // hash bucket -> first frame
+	int shift;               // 32 - log2(heads.length)
+	int used;                // frames handed out so far
+	int hand;                // CLOCK hand
+	Page[] spare = new Page[POOL];
+	int nspare;
+
+	long hits, misses, evictions, writes;
+
+	Segment(int capacity) {
+	    frames = new Page[capacity];
+	    ref = new boolean[capacity];
+	    dirty = new boolean[capacity];
+	    pins = new int[capacity];
+	    owned = new boolean[capacity];
+	    next = new int[capacity];
+
+	    int n = 2;
+	    shift = 31;
+	    while (n < 2 * capacity) {
+		n <<= 1;
+		shift--;
+	    }
+	    heads = new int[n];
+	    for (int i=0;i<n;i++) {
+		heads[i] = -1;
+	    }
+	}
+
+	private int find(int bno, int h) {
+	    for (int f = heads[h >>> shift];f != -1;f = next[f]) {
+		if (frames[f].bno == bno) {
+		    return f;
+		}
+	    }
+	    return -1;
+	}
+
+	Page get(int bno, int h) {
+	    lock.lock();
+	    try {
+		int f = find(bno,h);
+		if (f == -1) {
+		    misses++;
+		    return null;
+		}
+		hits++;
+		ref[f] = true;
+		pins[f]++;
+		return frames[f];
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	/**
+	 * Copies block bno into b, holding the segment as the frame may
+	 * be recycled as soon as it is let go.
+	 */
+	boolean peek(int bno, int h, byte[] b) {
+	    lock.lock();
+	    try {
+		int f = find(bno,h);
+		if (f == -1) {
+		    return false;
+		}
+		// copy, cached pages are modified in place.
+		System.arraycopy(frames[f].pag,0,b,0,blockSize);
+		return true;
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	void release(Page p, int h) {
+	    lock.lock();
+	    try {
+		// gone, or replaced by put(), means there's nothing to
+		// recycle.
+		int f = find(p.bno,h);
+		if (f != -1 && frames[f] == p && pins[f] > 0) {
+		    pins[f]--;
+		}
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	/**
+	 * @return a page to read block bno into, an evicted one if
+	 * there's any.
+	 */
+	Page frame(int bno) {
+	    Page p = null;
+	    lock.lock();
+	    try {
+		if (nspare > 0) {
+		    p = spare[--nspare];
+		    spare[nspare] = null;
+		}
+	    } finally {
+		lock.unlock();
+	    }
+	    if (p == null) {
+		p = new Page(blockSize);
+	    } else {
+		p.dropFingerprints();
+	    }
+	    p.bno = bno;
+	    return p;
+	}
+
+	/**
+	 * Keeps p, which nobody holds, for frame().
+	 */
+	void recycle(Page p) {
+	    lock.lock();
+	    try {
+		recycleLocked(p);
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	private void recycleLocked(Page p) {
+	    if (nspare < spare.length) {
+		spare[nspare++] = p;
+	    }
+	}
+
+	/**
+	 * @param modified if true p replaces any cached copy and is
+	 * written or marked dirty, otherwise a cached copy wins, and p,
+	 * which must come from frame(), is recycled.
+	 * @return the cached page, pinned unless modified.
+	 */
+	Page install(Page p, int h, boolean modified) 
+	    throws IOException {
+	    lock.lock();
+	    try {
+		return installLocked(p,h,modified);
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	private Page installLocked(Page p, int h, boolean modified) 
+	    throws IOException {
+	    int f = find(p.bno,h);
+	    if (f != -1 && !modified) {
+		ref[f] = true;
+		pins[f]++;
+		recycleLocked(p);
+		return frames[f];
+	    }
+
+	    if (f == -1) {
+		if (used < frames.length) {
+		    f = used++;
+		} else {
+		    f = victim();
+		    if (dirty[f]) {
+			write(frames[f]);
+			writes++;
+		    }
+		    if (slabs != null) {
+			slabs.write(frames[f].bno,frames[f].pag);
+		    }
+		    unlink(f);
+		    if (pins[f] == 0 && owned[f]) {
+			recycleLocked(frames[f]);
+		    }
+		    evictions++;
+		}
+		int b = h >>> shift;
+		next[f] = heads[b];
+		heads[b] = f;
+		dirty[f] = false;
+		pins[f] = 0;
+		owned[f] = !modified;
+	    } else if (frames[f] != p) {
+		// the old page may still be held, and the new one is
+		// the caller's.
+		pins[f] = 0;
+		owned[f] = false;
+	    }
+
+	    frames[f] = p;
+	    ref[f] = true;
+	    if (!modified) {
+		pins[f]++;
+	    }
+	    if (modified) {
+		if (slabs != null) {
+		    slabs.remove(p.bno);
+		}
+		if (writeBack || deferred) {
+		    dirty[f] = true;
+		} else {
+		    write(p);
+		    writes++;
+		}
+	    }
+	    return p;
+	}
+
+	private int victim() {
+	    for (;;) {
+		int f = hand;
+		hand = (hand + 1) % frames.length;
+		if (!ref[f]) {
+		    return f;
+		}
+		ref[f] = false;
+	    }
+	}
+
+	private void unlink(int f) {
+	    int b = hash(frames[f].bno) >>> shift;
+	    if (heads[b] == f) {
+		heads[b] = next[f];
+		return;
+	    }
+	    for (int g = heads[b];next[g] != -1;g = next[g]) {
+		if (next[g] == f) {
+		    next[g] = next[f];
+		    return;
+		}
+	    }
+	}
+
+	void flush() throws IOException {
+	    lock.lock();
+	    try {
+		for (int f=0;f<used;f++) {
+		    if (dirty[f]) {
+			write(frames[f]);
+			writes++;
+			dirty[f] = false;
+		    }
+		}
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+}
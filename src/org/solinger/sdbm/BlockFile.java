@@ -0,0 +1,48 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage engine underneath a .dir or .pag file.  Blocks are
+ * addressed by absolute byte position, so callers never see a file
+ * pointer and any number of threads may read at once.
+ *
+ * @see SdbmOptions#setIoEngine
+ */
+interface BlockFile {
+
+    /**
+     * Reads len bytes starting at pos.  Bytes past the end of the file
+     * read as zeros, which is what sdbm expects of file "holes".
+     */
+    public void read(long pos, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Reads dst.remaining() bytes starting at pos into dst, which may be
+     * a direct buffer.
+     */
+    public void read(long pos, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes len bytes at pos, growing the file if needed.
+     */
+    public void write(long pos, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Writes src.remaining() bytes of src at pos.
+     */
+    public void write(long pos, ByteBuffer src) throws IOException;
+
+    /**
+     * @return the logical length of the file in bytes.
+     */
+    public long length() throws IOException;
+
+    /**
+     * Forces the writes so far to the disk.
+     */
+    public void force() throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,170 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter over the keys of a database, which lets Sdbm answer
+ * most lookups of missing keys without touching the directory or a
+ * page.  Keys are only ever added, so removed keys stay in until
+ * compact() builds a new filter.
+ * <p>
+ * The key's 64 bit xxHash is split in two for double hashing, so it
+ * doesn't depend on the hash function of the database.  Adding needs
+ * the write lock, testing the read lock.
+ * <p>
+ * The name.blm file is written by close() along with the .meta
+ * header, and only trusted if it is from the same clean close:
+ * <pre>
+ *   int   magic 'SBLM'
+ *   int   number of hashes
+ *   long  number of bits
+ *   long  number of keys added
+ *   long  number of pairs in the database
+ *   long  number of pages in the database
+ *   long[] bits
+ * </pre>
+ */
+class BloomFilter {
+
+    static final int MAGIC = 0x53424c4d;
+
+    int hashes;
+    long bits;
+    long[] words;
+    long count;
+
+    LongAdder queries = new LongAdder();
+    LongAdder negatives = new LongAdder();
+    LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Sizes the filter for keys keys at a false positive rate of fpp.
+     */
+    BloomFilter(long keys, double fpp) {
+	keys = Math.max(1,keys);
+	bits = (long) Math.ceil(-keys * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+	bits = Math.max(64,Math.min(bits,64L * Integer.MAX_VALUE));
+	hashes = (int) Math.max(1,Math.round((double) bits / keys * Math.log(2)));
+	words = new long[(int) ((bits + 63) / 64)];
+    }
+
+    private BloomFilter(int hashes, long bits) {
+	this.hashes = hashes;
+	this.bits = bits;
+	this.words = new long[(int) ((bits + 63) / 64)];
+    }
+
+    void add(byte[] key, int off, int len) {
+	long h = Hash.xxhash64(key,off,len);
+	long h1 = (int) h;
+	long h2 = h >>> 32;
+	for (int i=0;i<hashes;i++) {
+	    long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+	    words[(int) (bit >>> 6)] |= 1L << bit;
+	}
+	count++;
+    }
+
+    /**
+     * @return false if the key is certainly not in the database.
+     */
+    boolean mightContain(byte[] key, int off, int len) {
+	queries.increment();
+	long h = Hash.xxhash64(key,off,len);
+	long h1 = (int) h;
+	long h2 = h >>> 32;
+	for (int i=0;i<hashes;i++) {
+	    long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+	    if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+		negatives.increment();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Counts a key that mightContain() let through but wasn't there.
+     */
+    void falsePositive() {
+	falsePositives.increment();
+    }
+
+    /**
+     * Carries the counters of a filter this one replaces on.
+     */
+    void keepStats(BloomFilter old) {
+	queries = old.queries;
+	negatives = old.negatives;
+	falsePositives = old.falsePositives;
+    }
+
+    BloomStats getStats() {
+	long set = 0;
+	for (int i=0;i<words.length;i++) {
+	    set += Long.bitCount(words[i]);
+	}
+	return new BloomStats(bits,hashes,count,
+			      Math.pow((double) set / bits,hashes),
+			      queries.sum(),negatives.sum(),
+			      falsePositives.sum());
+    }
+
+    /**
+     * @return the filter in f if it was written with the database in
+     * the given state, null otherwise.
+     */
+    static BloomFilter read(File f, long elementCount, long pageCount)
+	throws IOException {
+	if (!f.exists()) {
+	    return null;
+	}
+	DataInputStream in = new DataInputStream
+	    (new BufferedInputStream(new FileInputStream(f),65536));
+	try {
+	    if (in.readInt() != MAGIC) {
+		return null;
+	    }
+	    int hashes = in.readInt();
+	    long bits = in.readLong();
+	    long count = in.readLong();
+	    if (in.readLong() != elementCount || in.readLong() != pageCount ||
+		hashes < 1 || bits < 64 || bits > 64L * Integer.MAX_VALUE ||
+		f.length() != 40 + (bits + 63) / 64 * 8) {
+		return null;
+	    }
+	    BloomFilter bf = new BloomFilter(hashes,bits);
+	    bf.count = count;
+	    for (int i=0;i<bf.words.length;i++) {
+		bf.words[i] = in.readLong();
+	    }
+	    return bf;
+	} catch (EOFException e) {
+	    return null;
+	} finally {
+	    in.close();
+	}
+    }
+
+    void write(File f, long elementCount, long pageCount) throws IOException {
+	FileOutputStream fos = new FileOutputStream(f);
+	DataOutputStream out = new DataOutputStream
+	    (new BufferedOutputStream(fos,65536));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(hashes);
+	    out.writeLong(bits);
+	    out.writeLong(count);
+	    out.writeLong(elementCount);
+	    out.writeLong(pageCount);
+	    for (int i=0;i<words.length;i++) {
+		out.writeLong(words[i]);
+	    }
+	    out.flush();
+	    fos.getChannel().force(true);
+	} finally {
+	    out.close();
+	}
+    }
+}
@@ -0,0 +1,78 @@
+package org.solinger.sdbm;
+
+/**
+ * A snapshot of an Sdbm's Bloom filter and of how much it helped.
+ *
+ * @see Sdbm#getBloomStats
+ * @see SdbmOptions#setBloomFilter
+ */
+public class BloomStats {
+
+    private long bits;
+    private int hashes;
+    private long keys;
+    private double fpp;
+    private long queries;
+    private long negatives;
+    private long falsePositives;
+
+    BloomStats(long bits, int hashes, long keys, double fpp,
+	       long queries, long negatives, long falsePositives) {
+	this.bits = bits;
+	this.hashes = hashes;
+	this.keys = keys;
+	this.fpp = fpp;
+	this.queries = queries;
+	this.negatives = negatives;
+	this.falsePositives = falsePositives;
+    }
+
+    /** @return the size of the filter in bits. */
+    public long getBits() {
+	return bits;
+    }
+
+    /** @return the number of hashes per key. */
+    public int getHashes() {
+	return hashes;
+    }
+
+    /** @return the keys added, removed ones included. */
+    public long getKeys() {
+	return keys;
+    }
+
+    /** @return the false positive rate the filter is at now. */
+    public double getFalsePositiveProbability() {
+	return fpp;
+    }
+
+    /** @return the lookups that asked the filter. */
+    public long getQueries() {
+	return queries;
+    }
+
+    /** @return the lookups answered by the filter alone. */
+    public long getNegatives() {
+	return negatives;
+    }
+
+    /** @return the lookups the filter let through for missing keys. */
+    public long getFalsePositives() {
+	return falsePositives;
+    }
+
+    /**
+     * @return the share of misses that were caught by the filter.
+     */
+    public double getEffectiveness() {
+	long misses = negatives + falsePositives;
+	return misses == 0 ? 0 : (double) negatives / misses;
+    }
+
+    public String toString() {
+	return "BloomStats[bits="+bits+",hashes="+hashes+",keys="+keys+
+	    ",fpp="+fpp+",queries="+queries+",negatives="+negatives+
+	    ",falsePositives="+falsePositives+"]";
+    }
+}
@@ -0,0 +1,361 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Builds a new database from a stream of pairs in one go, instead of
+ * growing it one split at a time with put().
+ * <p>
+ * Pairs are kept in memory up to a limit, past it they are spilled to
+ * 2^SPILLBITS files by the low bits of their hash, the bits the
+ * directory trie splits on first.  build() then takes a partition at a
+ * time, splits it until every bucket fits in a page, writes each page
+ * once in block order, and finally writes the directory bitmap in a
+ * single pass, followed by a clean name.meta header.  The result is an
+ * ordinary sdbm database.
+ * <p>
+ * Values too big for a page go straight to a new name.ovf as they are
+ * added.  If a key is added more than once the last value wins.
+ * <pre>
+ *   BulkLoader loader = new BulkLoader(dir,"index");
+ *   loader.add(key,value);
+ *   ...
+ *   loader.build();
+ *   Sdbm db = new Sdbm(dir,"index","r");
+ * </pre>
+ */
+public class BulkLoader {
+
+    static final int SPILLBITS = 8;
+    static final String SPILLEXT = ".spill";
+
+    // about what a pair costs in the lists besides its bytes.
+    private static final int OVERHEAD = 64;
+    // the children of a deeper node would overflow an int dbit.
+    private static final int MAXDEPTH = 30;
+
+    File baseDir;
+    String name;
+    Charset charset;
+    int pageSize;
+    HashFunction hashFunction;
+    long memoryLimit = 64L << 20;
+
+    ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    ArrayList<byte[]> vals = new ArrayList<byte[]>();
+    BitSet overflow = new BitSet();   // vals that are OverflowFile refs
+    OverflowFile ovf;                 // null until a value needs it
+    long memory;
+    DataOutputStream[] spills;    // null until memory runs out
+    int[] spillCounts;
+    boolean built;
+
+    BitSet dir = new BitSet();    // directory bits of the split nodes
+    BlockFile pagf;
+
+    /**
+     * @param name The name of the database to build, any existing
+     * name.pag, name.dir, name.meta and name.ovf are replaced.
+     */
+    public BulkLoader(File baseDir, String name) {
+	this(baseDir,name,new SdbmOptions());
+    }
+
+    /**
+     * @param options The page size and hash function of the database
+     * and the charset of the String method.
+     */
+    public BulkLoader(File baseDir, String name, SdbmOptions options) {
+	this.baseDir = baseDir;
+	this.name = name;
+	this.charset = options.getCharset();
+	this.pageSize = options.getPageSize();
+	this.hashFunction = options.getHashFunction();
+    }
+
+    /**
+     * @param bytes About how much memory the pairs may take before
+     * they are spilled to disk.
+     */
+    public BulkLoader setMemoryLimit(long bytes) {
+	if (bytes < 1) {
+	    throw new IllegalArgumentException("memory limit < 1: "+bytes);
+	}
+	this.memoryLimit = bytes;
+	return this;
+    }
+
+    public void add(String key, String value) throws IOException {
+	add(key.getBytes(charset),value.getBytes(charset));
+    }
+
+    /**
+     * Adds a pair.  The arrays are kept, don't modify them afterwards.
+     */
+    public void add(byte[] key, byte[] value) throws IOException {
+	if (built) {
+	    throw new IllegalStateException("already built");
+	}
+	if (key.length <= 0) {
+	    throw new IllegalArgumentException("key too small: "+key.length);
+	}
+	int pairMax = Sdbm.pairMax(pageSize);
+	if (key.length + Math.min(value.length,OverflowFile.REFSIZ) > pairMax) {
+	    throw new SdbmException("Key is too big for this database");
+	}
+
+	boolean ovfl = key.length + value.length > pairMax;
+	if (ovfl) {
+	    if (ovf == null) {
+		File ovfFile = new File(baseDir,name+Sdbm.OVFEXT);
+		ovfFile.delete();
+		ovf = new OverflowFile(ovfFile,"rw",pageSize);
+	    }
+	    value = ovf.write(value,0,value.length);
+	}
+
+	if (spills != null) {
+	    spill(key,value,ovfl);
+	    return;
+	}
+	overflow.set(keys.size(),ovfl);
+	keys.add(key);
+	vals.add(value);
+	memory += key.length + value.length + OVERHEAD;
+	if (memory > memoryLimit) {
+	    spills = new DataOutputStream[1 << SPILLBITS];
+	    spillCounts = new int[spills.length];
+	    for (int p=0;p<spills.length;p++) {
+		spills[p] = new DataOutputStream
+		    (new BufferedOutputStream
+		     (new FileOutputStream(spillFile(p)),8192));
+	    }
+	    for (int i=0;i<keys.size();i++) {
+		spill(keys.get(i),vals.get(i),overflow.get(i));
+	    }
+	    keys.clear();
+	    vals.clear();
+	    overflow.clear();
+	    memory = 0;
+	}
+    }
+
+    /**
+     * Adds all the pairs of an iterator.
+     */
+    public void addAll(Iterator<? extends Map.Entry<byte[],byte[]>> pairs)
+	throws IOException {
+	while (pairs.hasNext()) {
+	    Map.Entry<byte[],byte[]> e = pairs.next();
+	    add(e.getKey(),e.getValue());
+	}
+    }
+
+    /**
+     * Writes the database.  The loader can't be used afterwards.
+     *
+     * @return the number of pairs in the database.
+     */
+    public int build() throws IOException {
+	if (built) {
+	    throw new IllegalStateException("already built");
+	}
+	built = true;
+
+	File dirFile = new File(baseDir,name+Sdbm.DIREXT);
+	File pagFile = new File(baseDir,name+Sdbm.PAGEXT);
+	File metaFile = new File(baseDir,name+Sdbm.METAEXT);
+	dirFile.delete();
+	pagFile.delete();
+	metaFile.delete();
+	new File(baseDir,name+Sdbm.BLMEXT).delete();
+	new File(baseDir,name+Sdbm.IDXEXT).delete();
+	// or it would be replayed over the new files.
+	new File(baseDir,name+Sdbm.WALEXT).delete();
+	if (ovf == null) {
+	    new File(baseDir,name+Sdbm.OVFEXT).delete();
+	}
+
+	int count = 0;
+	pagf = new RandomAccessBlockFile(pagFile,"rw");
+	try {
+	    if (spills == null) {
+		count = load(0,0,0);
+	    } else {
+		for (int p=0;p<spills.length;p++) {
+		    spills[p].close();
+		}
+		// every node above the partitions is split.
+		dir.set(0,(1 << SPILLBITS) - 1);
+		for (int p=0;p<spills.length;p++) {
+		    DataInputStream in = new DataInputStream
+			(new BufferedInputStream
+			 (new FileInputStream(spillFile(p)),8192));
+		    try {
+			for (int i=0;i<spillCounts[p];i++) {
+			    byte[] key = new byte[in.readInt()];
+			    in.readFully(key);
+			    overflow.set(keys.size(),in.readBoolean());
+			    byte[] val = new byte[in.readInt()];
+			    in.readFully(val);
+			    keys.add(key);
+			    vals.add(val);
+			}
+		    } finally {
+			in.close();
+		    }
+		    spillFile(p).delete();
+		    count += load(SPILLBITS,p,dirBit(SPILLBITS,p));
+		}
+	    }
+	} finally {
+	    pagf.close();
+	    if (ovf != null) {
+		ovf.close();
+	    }
+	    if (spills != null) {
+		for (int p=0;p<spills.length;p++) {
+		    spills[p].close();
+		    spillFile(p).delete();
+		}
+	    }
+	}
+
+	// whole blocks, like Sdbm writes them.
+	byte[] bits = dir.toByteArray();
+	int len = (bits.length + Sdbm.DBLKSIZ - 1) / Sdbm.DBLKSIZ * Sdbm.DBLKSIZ;
+	BlockFile dirf = new RandomAccessBlockFile(dirFile,"rw");
+	try {
+	    dirf.write(0,Arrays.copyOf(bits,len),0,len);
+	} finally {
+	    dirf.close();
+	}
+
+	// last, the database is only clean once it is all there.
+	Meta meta = new Meta();
+	meta.pageSize = pageSize;
+	meta.hashId = hashFunction.getId();
+	meta.elementCount = count;
+	meta.pageCount = (pagFile.length() + pageSize - 1) / pageSize;
+	meta.clean = true;
+	meta.write(metaFile);
+	return count;
+    }
+
+    private File spillFile(int p) {
+	return new File(baseDir,name+SPILLEXT+p);
+    }
+
+    private void spill(byte[] key, byte[] value, boolean ovfl)
+	throws IOException {
+	int p = hashFunction.hash(key) & ((1 << SPILLBITS) - 1);
+	spills[p].writeInt(key.length);
+	spills[p].write(key);
+	spills[p].writeBoolean(ovfl);
+	spills[p].writeInt(value.length);
+	spills[p].write(value);
+	spillCounts[p]++;
+    }
+
+    /**
+     * @return the directory bit of the trie node reached by the low
+     * depth bits of bno.
+     */
+    private static int dirBit(int depth, int bno) {
+	int dbit = 0;
+	for (int i=0;i<depth;i++) {
+	    dbit = 2 * dbit + ((bno & (1 << i)) != 0 ? 2 : 1);
+	}
+	return dbit;
+    }
+
+    /**
+     * Writes out the pairs in keys/vals, which all belong under the
+     * trie node (depth, bno, dbit), and clears them.
+     *
+     * @return the number of distinct keys.
+     */
+    private int load(int depth, int bno, int dbit) throws IOException {
+	// the last value of a key wins.
+	HashMap<ByteBuffer,Integer> last = new HashMap<ByteBuffer,Integer>();
+	for (int i=0;i<keys.size();i++) {
+	    last.put(ByteBuffer.wrap(keys.get(i)),i);
+	}
+	int[] idx = new int[last.size()];
+	int[] hash = new int[keys.size()];
+	int n = 0;
+	for (int i=0;i<keys.size();i++) {
+	    if (last.get(ByteBuffer.wrap(keys.get(i))) == i) {
+		idx[n++] = i;
+		hash[i] = hashFunction.hash(keys.get(i));
+	    } else if (overflow.get(i)) {
+		ovf.free(vals.get(i));
+	    }
+	}
+
+	ArrayList<Page> leaves = new ArrayList<Page>();
+	split(idx,hash,0,n,depth,bno,dbit,leaves);
+
+	// each page once, in file order.
+	Collections.sort(leaves,new Comparator<Page>() {
+		public int compare(Page a, Page b) {
+		    return Integer.compare(a.bno,b.bno);
+		}
+	    });
+	for (Page p : leaves) {
+	    pagf.write((long) p.bno * pageSize,p.pag,0,pageSize);
+	}
+
+	keys.clear();
+	vals.clear();
+	overflow.clear();
+	return n;
+    }
+
+    /**
+     * Splits the pairs idx[lo..hi) at trie node (depth, bno, dbit)
+     * until each bucket fits in a page.
+     */
+    private void split(int[] idx, int[] hash, int lo, int hi,
+		       int depth, int bno, int dbit, ArrayList<Page> leaves)
+	throws SdbmException {
+	int need = 0;
+	for (int i=lo;i<hi;i++) {
+	    need += keys.get(idx[i]).length + vals.get(idx[i]).length
+		+ 2 * Sdbm.SHORTSIZ;
+	}
+	// the pair count takes a short as well.
+	if (need <= pageSize - Sdbm.SHORTSIZ) {
+	    if (lo < hi) {
+		Page p = new Page(pageSize);
+		p.bno = bno;
+		for (int i=lo;i<hi;i++) {
+		    byte[] key = keys.get(idx[i]);
+		    byte[] val = vals.get(idx[i]);
+		    p.put(key,0,key.length,val,0,val.length,
+			  overflow.get(idx[i]));
+		}
+		leaves.add(p);
+	    }
+	    return;
+	}
+	if (depth >= MAXDEPTH) {
+	    throw new SdbmException("Too many keys with the same hash");
+	}
+
+	dir.set(dbit);
+	int m = lo;
+	for (int i=lo;i<hi;i++) {
+	    if ((hash[idx[i]] & (1 << depth)) == 0) {
+		int t = idx[i];
+		idx[i] = idx[m];
+		idx[m++] = t;
+	    }
+	}
+	split(idx,hash,lo,m,depth+1,bno,2*dbit+1,leaves);
+	split(idx,hash,m,hi,depth+1,bno | (1 << depth),2*dbit+2,leaves);
+    }
+}
@@ -0,0 +1,67 @@
+package org.solinger.sdbm;
+
+/**
+ * A snapshot of the counters of one of an Sdbm's block caches.
+ *
+ * @see Sdbm#getPageCacheStats
+ * @see Sdbm#getDirCacheStats
+ * @see Sdbm#getOffHeapCacheStats
+ */
+public class CacheStats {
+
+    private int capacity;
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writes;
+
+    CacheStats(int capacity, int size, long hits, long misses, 
+	       long evictions, long writes) {
+	this.capacity = capacity;
+	this.size = size;
+	this.hits = hits;
+	this.misses = misses;
+	this.evictions = evictions;
+	this.writes = writes;
+    }
+
+    /** @return the maximum number of blocks held. */
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /** @return the number of blocks held. */
+    public int getSize() {
+	return size;
+    }
+
+    public long getHits() {
+	return hits;
+    }
+
+    /** @return lookups that had to read the block from disk. */
+    public long getMisses() {
+	return misses;
+    }
+
+    public long getEvictions() {
+	return evictions;
+    }
+
+    /** @return blocks written back to disk. */
+    public long getWrites() {
+	return writes;
+    }
+
+    /** @return hits / (hits + misses), 0 if there were no lookups. */
+    public double getHitRate() {
+	long n = hits + misses;
+	return n == 0 ? 0 : (double) hits / n;
+    }
+
+    public String toString() {
+	return "CacheStats[capacity="+capacity+",size="+size+",hits="+hits+
+	    ",misses="+misses+",evictions="+evictions+",writes="+writes+"]";
+    }
+}
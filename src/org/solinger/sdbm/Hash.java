@@ -1,5 +1,7 @@
 package org.solinger.sdbm;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Java rewrite of sdbm.
  * sdbm - ndbm work-alike hashed database library
@@ -12,6 +14,11 @@ package org.solinger.sdbm;
  */
 public class Hash {
 
+    // 65599^2..4, for four steps of the polynomial at once.
+    private static final int P2 = 65599 * 65599;
+    private static final int P3 = P2 * 65599;
+    private static final int P4 = P3 * 65599;
+
     /**
      * polynomial conversion ignoring overflows
      * [this seems to work remarkably well, in fact better
@@ -20,18 +27,153 @@ public class Hash {
      *      65587   even better.
      */
     public static final int hash(String str) {
-        return hash(str.getBytes());
+        // the default charset of SdbmOptions, so it matches the keys.
+        return hash(str.getBytes(StandardCharsets.UTF_8));
     }
 
     public static final int hash(byte[] b){
+        return hash(b,0,b.length);
+    }
+
+    public static final int hash(byte[] b, int off, int len){
         int n = 0;
-        int len = b.length;
+        int end = off + len;
+        int i = off;
 
-        for (int i=0;i<len;i++) {
+        // n = b[i] + 65599 * n, four bytes at a time.  The products
+        // don't depend on each other, which the byte loop's do.
+        for (;i + 4 <= end;i += 4) {
+            n = P4 * n + P3 * b[i] + P2 * b[i+1] + 65599 * b[i+2] + b[i+3];
+        }
+        for (;i<end;i++) {
             n = b[i] + 65599 *n;
         }
         return n;
     }
-}
 
+    /**
+     * MurmurHash3 x86_32 with seed 0, by Austin Appleby (public domain).
+     */
+    @SuppressWarnings("fallthrough")
+    public static final int murmur3(byte[] b, int off, int len) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int h = 0;
+        int i = off;
+        int end = off + (len & ~3);
+
+        for (;i<end;i += 4) {
+            int k = (b[i] & 0xff) | (b[i+1] & 0xff) << 8 |
+                (b[i+2] & 0xff) << 16 | b[i+3] << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k,15);
+            k *= c2;
+            h ^= k;
+            h = Integer.rotateLeft(h,13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        switch (len & 3) {
+        case 3:
+            k ^= (b[i+2] & 0xff) << 16;
+            // fall through
+        case 2:
+            k ^= (b[i+1] & 0xff) << 8;
+            // fall through
+        case 1:
+            k ^= b[i] & 0xff;
+            k *= c1;
+            k = Integer.rotateLeft(k,15);
+            k *= c2;
+            h ^= k;
+        }
+
+        h ^= len;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final long X1 = 0x9E3779B185EBCA87L;
+    private static final long X2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long X3 = 0x165667B19E3779F9L;
+    private static final long X4 = 0x85EBCA77C2B2AE63L;
+    private static final long X5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * XXH64 with seed 0, by Yann Collet (BSD license).
+     */
+    public static final long xxhash64(byte[] b, int off, int len) {
+        int i = off;
+        int end = off + len;
+        long h;
+
+        if (len >= 32) {
+            long v1 = X1 + X2;
+            long v2 = X2;
+            long v3 = 0;
+            long v4 = -X1;
+            for (;i + 32 <= end;i += 32) {
+                v1 = round(v1,getLong(b,i));
+                v2 = round(v2,getLong(b,i+8));
+                v3 = round(v3,getLong(b,i+16));
+                v4 = round(v4,getLong(b,i+24));
+            }
+            h = Long.rotateLeft(v1,1) + Long.rotateLeft(v2,7) +
+                Long.rotateLeft(v3,12) + Long.rotateLeft(v4,18);
+            h = merge(h,v1);
+            h = merge(h,v2);
+            h = merge(h,v3);
+            h = merge(h,v4);
+        } else {
+            h = X5;
+        }
+        h += len;
+
+        for (;i + 8 <= end;i += 8) {
+            h ^= round(0,getLong(b,i));
+            h = Long.rotateLeft(h,27) * X1 + X4;
+        }
+        if (i + 4 <= end) {
+            h ^= (getInt(b,i) & 0xffffffffL) * X1;
+            h = Long.rotateLeft(h,23) * X2 + X3;
+            i += 4;
+        }
+        for (;i<end;i++) {
+            h ^= (b[i] & 0xff) * X5;
+            h = Long.rotateLeft(h,11) * X1;
+        }
+
+        h ^= h >>> 33;
+        h *= X2;
+        h ^= h >>> 29;
+        h *= X3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * X2;
+        acc = Long.rotateLeft(acc,31);
+        return acc * X1;
+    }
+
+    private static long merge(long acc, long val) {
+        acc ^= round(0,val);
+        return acc * X1 + X4;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 |
+            (b[i+2] & 0xff) << 16 | b[i+3] << 24;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return (getInt(b,i) & 0xffffffffL) | (long) getInt(b,i+4) << 32;
+    }
+}
 
@@ -0,0 +1,69 @@
+package org.solinger.sdbm;
+
+/**
+ * The hash functions a database can be built with.  The trie is built
+ * on the low bits of the hash, so the function must be the same for
+ * the whole life of the database: it is chosen with
+ * SdbmOptions.setHashFunction() when the database is created and its
+ * id is kept in the .meta header.
+ * <p>
+ * SDBM is the original polynomial and the default, it is the only one
+ * older files can have been written with.  MURMUR3 (x86_32) and
+ * XXHASH64 (folded to its low 32 bits) take 4 and 8 bytes a step,
+ * which is faster on long keys, and mix much better on keys that only
+ * differ in a few bytes, URLs with a common suffix say.
+ */
+public enum HashFunction {
+
+    SDBM(0) {
+	public int hash(byte[] b, int off, int len) {
+	    return Hash.hash(b,off,len);
+	}
+    },
+
+    MURMUR3(1) {
+	public int hash(byte[] b, int off, int len) {
+	    return Hash.murmur3(b,off,len);
+	}
+    },
+
+    XXHASH64(2) {
+	public int hash(byte[] b, int off, int len) {
+	    return (int) Hash.xxhash64(b,off,len);
+	}
+    };
+
+    private final int id;
+
+    HashFunction(int id) {
+	this.id = id;
+    }
+
+    /**
+     * @return the hash of b[off..off+len).
+     */
+    public abstract int hash(byte[] b, int off, int len);
+
+    public int hash(byte[] b) {
+	return hash(b,0,b.length);
+    }
+
+    /**
+     * @return the number recorded in the .meta header.
+     */
+    public int getId() {
+	return id;
+    }
+
+    /**
+     * @return the function with the given id, or null if there is none.
+     */
+    public static HashFunction forId(int id) {
+	for (HashFunction f : values()) {
+	    if (f.id == id) {
+		return f;
+	    }
+	}
+	return null;
+    }
+}
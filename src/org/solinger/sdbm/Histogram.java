@@ -0,0 +1,65 @@
+package org.solinger.sdbm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram cheap enough for the hot paths: recording is a
+ * couple of shifts and two striped adds, so threads don't contend.
+ * Values are counted in buckets of a quarter of a power of two, which
+ * keeps percentiles within 25% of the truth.
+ */
+class Histogram {
+
+    static final int BUCKETS = 248;
+
+    LongAdder[] counts = new LongAdder[BUCKETS];
+    LongAdder total = new LongAdder();
+
+    Histogram() {
+	for (int i=0;i<BUCKETS;i++) {
+	    counts[i] = new LongAdder();
+	}
+    }
+
+    /**
+     * @return the bucket of v: 0-3 as they are, then 4 to a power of
+     * two.
+     */
+    static int bucket(long v) {
+	if (v < 4) {
+	    return (int) Math.max(0,v);
+	}
+	int e = 63 - Long.numberOfLeadingZeros(v);
+	return (e - 1) * 4 + (int) ((v >>> (e - 2)) & 3);
+    }
+
+    /**
+     * @return the smallest value in bucket i.
+     */
+    static long lowest(int i) {
+	if (i < 4) {
+	    return i;
+	}
+	return (4L | (i & 3)) << (i / 4 - 1);
+    }
+
+    void record(long nanos) {
+	counts[bucket(nanos)].increment();
+	total.add(nanos);
+    }
+
+    /**
+     * Records the time since start, a System.nanoTime().
+     */
+    void since(long start) {
+	record(System.nanoTime() - start);
+    }
+
+    LatencyStats getStats() {
+	long[] c = new long[BUCKETS];
+	for (int i=0;i<BUCKETS;i++) {
+	    c[i] = counts[i].sum();
+	}
+	return new LatencyStats(c,total.sum());
+    }
+}
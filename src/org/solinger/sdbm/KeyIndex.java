@@ -0,0 +1,629 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * The keys of a database in order, for range and prefix scans, which
+ * a hash table can't do by itself.  The keys live in a sorted run on
+ * disk, name.idx, and the changes made since it was written in memory:
+ * the keys added and the keys of the run removed.  Once those take
+ * more than the limit, see SdbmOptions.setSortedIndexLimit(), they
+ * are merged with the run into a new one, which replaces it by a
+ * rename.  The index is kept up to date by put() and remove() under
+ * the write lock; scans merge the run with the changes under the read
+ * lock and only look up the pages of the keys they hand out.
+ * <p>
+ * Keys are ordered as unsigned bytes, a prefix before the longer
+ * keys.  close() merges the changes into the run along with the .meta
+ * header, and the run is only trusted if it is from the same clean
+ * close, the way the .blm file is.  Runs merged in between record -1
+ * pairs, so after a crash, or any other open that didn't end in
+ * close(), the index is rebuilt from the pages: their keys are sorted
+ * in parts of the limit and the parts merged.  A database opened read
+ * only keeps a run it has to build in a temporary file.
+ * <p>
+ * A run stores each key as what it shares with the one before and the
+ * rest, every RESTART-th key in full so that scans can start there:
+ * <pre>
+ *   int   magic 'SIDX'
+ *   long  number of pairs in the database, or -1
+ *   long  number of pages in the database, or -1
+ *   then for each key
+ *     int  bytes shared with the previous key
+ *     int  bytes following them
+ *     byte[] those bytes
+ * </pre>
+ */
+class KeyIndex {
+
+    static final int MAGIC = 0x53494458;
+    static final int HEADER = 4 + 8 + 8;
+    static final int RESTART = 64;
+
+    // roughly what a key costs on the heap besides its bytes: the
+    // array header and a tree node.
+    static final int OVERHEAD = 64;
+
+    static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+	    public int compare(byte[] a, byte[] b) {
+		return KeyIndex.compare(a,0,a.length,b,0,b.length);
+	    }
+	};
+
+    File file;               // the run, null until a read only one is made
+    boolean temporary;       // file is ours to delete
+    FileChannel run;         // on file, null while there is no run
+    long runCount;
+    long runPairs = -1;      // as in the header of the run
+    long runPages = -1;
+    List<Restart> restarts = new ArrayList<Restart>();
+
+    TreeSet<byte[]> added = new TreeSet<byte[]>(ORDER);
+    TreeSet<byte[]> removed = new TreeSet<byte[]>(ORDER);  // from the run
+    long limit;
+    long memory;             // of added and removed, see cost()
+    boolean dirty;           // changed since the run was written
+    List<File> parts;        // sorted while rebuilding, see load()
+
+    /**
+     * A key of the run stored in full, where reading can start.
+     */
+    private static class Restart {
+	byte[] key;
+	long pos;
+	long ordinal;
+
+	Restart(byte[] key, long pos, long ordinal) {
+	    this.key = key;
+	    this.pos = pos;
+	    this.ordinal = ordinal;
+	}
+    }
+
+    /**
+     * Keys in order, null at the end.
+     */
+    private interface Keys {
+	public byte[] next() throws IOException;
+    }
+
+    /**
+     * @param file where to keep the run, or null for a temporary file.
+     * @param limit the bytes the changes may take, see cost().
+     */
+    KeyIndex(File file, long limit) {
+	this.file = file;
+	this.limit = limit;
+    }
+
+    static int compare(byte[] a, int aoff, int alen,
+		       byte[] b, int boff, int blen) {
+	int n = Math.min(alen,blen);
+	for (int i=0;i<n;i++) {
+	    int c = (a[aoff+i] & 0xff) - (b[boff+i] & 0xff);
+	    if (c != 0) {
+		return c;
+	    }
+	}
+	return alen - blen;
+    }
+
+    /**
+     * @return the first key after all keys starting with prefix, or
+     * null if there is none, prefix being all 0xff bytes.
+     */
+    static byte[] successor(byte[] prefix) {
+	for (int i=prefix.length-1;i>=0;i--) {
+	    if (prefix[i] != (byte) 0xff) {
+		byte[] b = Arrays.copyOf(prefix,i+1);
+		b[i]++;
+		return b;
+	    }
+	}
+	return null;
+    }
+
+    private static byte[] copy(byte[] key, int off, int len) {
+	byte[] b = new byte[len];
+	System.arraycopy(key,off,b,0,len);
+	return b;
+    }
+
+    /**
+     * @return the memory a key of len bytes is counted as.
+     */
+    static long cost(int len) {
+	return len + OVERHEAD;
+    }
+
+    /**
+     * Adds a key that isn't in the index.
+     */
+    void add(byte[] key, int off, int len) throws IOException {
+	byte[] k = copy(key,off,len);
+	if (removed.remove(k)) {
+	    memory -= cost(len);
+	} else if (added.add(k)) {
+	    memory += cost(len);
+	}
+	dirty = true;
+	if (memory > limit) {
+	    spill(-1,-1);
+	}
+    }
+
+    /**
+     * Removes a key that is in the index.
+     */
+    void remove(byte[] key, int off, int len) throws IOException {
+	byte[] k = copy(key,off,len);
+	if (added.remove(k)) {
+	    memory -= cost(len);
+	} else if (removed.add(k)) {
+	    memory += cost(len);
+	}
+	dirty = true;
+	if (memory > limit) {
+	    spill(-1,-1);
+	}
+    }
+
+    void clear() {
+	closeRun();
+	if (file != null) {
+	    file.delete();
+	}
+	runCount = 0;
+	runPairs = runPages = -1;
+	restarts.clear();
+	added.clear();
+	removed.clear();
+	memory = 0;
+	dirty = true;
+    }
+
+    long size() {
+	return runCount + added.size() - removed.size();
+    }
+
+    /**
+     * Copies the next keys in order into out: those after after, or
+     * from from if after is null, or from the start if both are, up to
+     * to, exclusive, or the end if it is null.
+     *
+     * @return the number of keys copied, less than out.length at the
+     * end.
+     */
+    int next(byte[] from, byte[] after, byte[] to, byte[][] out)
+	throws IOException {
+	SortedSet<byte[]> mem = after != null ? added.tailSet(after,false) :
+	    from != null ? added.tailSet(from,true) : added;
+	List<Keys> keys = new ArrayList<Keys>();
+	keys.add(of(mem.iterator()));
+	if (runCount > 0) {
+	    keys.add(live(after != null ? after : from,after != null));
+	}
+	Keys merged = merge(keys);
+	int n = 0;
+	while (n < out.length) {
+	    byte[] k = merged.next();
+	    if (k == null || (to != null && ORDER.compare(k,to) >= 0)) {
+		break;
+	    }
+	    out[n++] = k;
+	}
+	return n;
+    }
+
+    /**
+     * @return the keys of the run from bound on, after it if exclusive,
+     * that haven't been removed.
+     */
+    private Keys live(final byte[] bound, final boolean exclusive) {
+	int r = 0;
+	if (bound != null) {
+	    // the last restart at or before bound.
+	    int lo = 0, hi = restarts.size() - 1;
+	    while (lo <= hi) {
+		int mid = (lo + hi) >>> 1;
+		if (ORDER.compare(restarts.get(mid).key,bound) <= 0) {
+		    r = mid;
+		    lo = mid + 1;
+		} else {
+		    hi = mid - 1;
+		}
+	    }
+	}
+	Restart start = restarts.get(r);
+	final RunReader reader =
+	    new RunReader(run,start.pos,runCount - start.ordinal);
+	return new Keys() {
+		public byte[] next() throws IOException {
+		    for (;;) {
+			byte[] k = reader.next();
+			if (k == null) {
+			    return null;
+			}
+			if (bound != null) {
+			    int c = ORDER.compare(k,bound);
+			    if (c < 0 || (c == 0 && exclusive)) {
+				continue;
+			    }
+			}
+			if (!removed.contains(k)) {
+			    return k;
+			}
+		    }
+		}
+	    };
+    }
+
+    private static Keys of(final Iterator<byte[]> it) {
+	return new Keys() {
+		public byte[] next() {
+		    return it.hasNext() ? it.next() : null;
+		}
+	    };
+    }
+
+    /**
+     * The next key of some Keys, for merge().
+     */
+    private static class Head {
+	byte[] key;
+	Keys keys;
+    }
+
+    /**
+     * @return the keys of all of keys in order, which mustn't share
+     * any.
+     */
+    private static Keys merge(List<Keys> keys) throws IOException {
+	if (keys.size() == 1) {
+	    return keys.get(0);
+	}
+	final PriorityQueue<Head> heads = new PriorityQueue<Head>
+	    (keys.size(),new Comparator<Head>() {
+		    public int compare(Head a, Head b) {
+			return ORDER.compare(a.key,b.key);
+		    }
+		});
+	for (Keys k : keys) {
+	    Head h = new Head();
+	    h.keys = k;
+	    h.key = k.next();
+	    if (h.key != null) {
+		heads.add(h);
+	    }
+	}
+	return new Keys() {
+		public byte[] next() throws IOException {
+		    Head h = heads.poll();
+		    if (h == null) {
+			return null;
+		    }
+		    byte[] key = h.key;
+		    h.key = h.keys.next();
+		    if (h.key != null) {
+			heads.add(h);
+		    }
+		    return key;
+		}
+	    };
+    }
+
+    /**
+     * Adds a key while the index is rebuilt from the pages, in no
+     * particular order.  The keys are sorted into parts of the limit,
+     * merged by finishLoad().
+     */
+    void load(byte[] key) throws IOException {
+	if (added.add(key)) {
+	    memory += cost(key.length);
+	}
+	if (memory > limit) {
+	    if (parts == null) {
+		parts = new ArrayList<File>();
+	    }
+	    File dir = file == null ? null :
+		file.getAbsoluteFile().getParentFile();
+	    File part = File.createTempFile("sdbmidx",".part",dir);
+	    parts.add(part);
+	    RunWriter w = new RunWriter(part,-1,-1);
+	    try {
+		for (byte[] k : added) {
+		    w.add(k);
+		}
+	    } finally {
+		w.close();
+	    }
+	    added.clear();
+	    memory = 0;
+	}
+    }
+
+    void finishLoad() throws IOException {
+	dirty = true;
+	if (parts == null) {
+	    return;
+	}
+	List<Keys> keys = new ArrayList<Keys>();
+	List<FileChannel> channels = new ArrayList<FileChannel>();
+	try {
+	    for (File part : parts) {
+		FileChannel ch = new RandomAccessFile(part,"r").getChannel();
+		channels.add(ch);
+		keys.add(new RunReader(ch,HEADER,Long.MAX_VALUE));
+	    }
+	    keys.add(of(added.iterator()));
+	    write(merge(keys),-1,-1);
+	} finally {
+	    for (FileChannel ch : channels) {
+		ch.close();
+	    }
+	    for (File part : parts) {
+		part.delete();
+	    }
+	    parts = null;
+	}
+    }
+
+    /**
+     * Merges the changes into a new run.
+     */
+    private void spill(long pairs, long pages) throws IOException {
+	List<Keys> keys = new ArrayList<Keys>();
+	keys.add(of(added.iterator()));
+	if (runCount > 0) {
+	    keys.add(live(null,false));
+	}
+	write(merge(keys),pairs,pages);
+    }
+
+    /**
+     * Replaces the run with keys, leaving no changes.
+     */
+    private void write(Keys keys, long pairs, long pages) throws IOException {
+	if (file == null) {
+	    file = File.createTempFile("sdbm",Sdbm.IDXEXT);
+	    temporary = true;
+	}
+	File tmp = new File(file.getPath()+".tmp");
+	RunWriter w = new RunWriter(tmp,pairs,pages);
+	boolean written = false;
+	try {
+	    for (byte[] k = keys.next();k != null;k = keys.next()) {
+		w.add(k);
+	    }
+	    written = true;
+	} finally {
+	    try {
+		w.close();
+	    } finally {
+		if (!written) {
+		    tmp.delete();
+		}
+	    }
+	}
+	closeRun();
+	Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE);
+	run = new RandomAccessFile(file,"r").getChannel();
+	runCount = w.count;
+	runPairs = pairs;
+	runPages = pages;
+	restarts = w.restarts;
+	added.clear();
+	removed.clear();
+	memory = 0;
+	dirty = false;
+    }
+
+    /**
+     * Makes the run complete and records the database it is of, for
+     * close().
+     */
+    void save(long pairs, long pages) throws IOException {
+	if (dirty || run == null || pairs != runPairs || pages != runPages) {
+	    spill(pairs,pages);
+	}
+    }
+
+    private void closeRun() {
+	if (run != null) {
+	    try {
+		run.close();
+	    } catch (IOException e) {
+		// it was only read.
+	    }
+	    run = null;
+	}
+    }
+
+    /**
+     * Lets go of the run, deleting it if it was temporary, and of the
+     * parts of a rebuild that didn't finish.
+     */
+    void close() {
+	closeRun();
+	if (temporary) {
+	    file.delete();
+	}
+	if (parts != null) {
+	    for (File part : parts) {
+		part.delete();
+	    }
+	    parts = null;
+	}
+    }
+
+    /**
+     * @return the index whose run is f, or null if it is missing or out
+     * of date.
+     */
+    static KeyIndex read(File f, long elementCount, long pageCount,
+			 long limit) throws IOException {
+	if (!f.exists()) {
+	    return null;
+	}
+	FileChannel ch = new RandomAccessFile(f,"r").getChannel();
+	KeyIndex idx = null;
+	try {
+	    ByteBuffer header = ByteBuffer.allocate(HEADER);
+	    while (header.hasRemaining()) {
+		if (ch.read(header,header.position()) < 0) {
+		    return null;
+		}
+	    }
+	    header.flip();
+	    if (header.getInt() != MAGIC || header.getLong() != elementCount ||
+		header.getLong() != pageCount) {
+		return null;
+	    }
+	    // find the restarts, checking the order on the way.
+	    List<Restart> restarts = new ArrayList<Restart>();
+	    RunReader r = new RunReader(ch,HEADER,elementCount);
+	    byte[] prev = null;
+	    long since = RESTART;
+	    for (long i=0;i<elementCount;i++) {
+		long pos = r.pos;
+		byte[] key = r.next();
+		if (key == null ||
+		    (prev != null && ORDER.compare(prev,key) >= 0)) {
+		    return null;
+		}
+		if (r.shared == 0 && since >= RESTART) {
+		    restarts.add(new Restart(key,pos,i));
+		    since = 0;
+		}
+		since++;
+		prev = key;
+	    }
+	    idx = new KeyIndex(f,limit);
+	    idx.run = ch;
+	    idx.runCount = elementCount;
+	    idx.runPairs = elementCount;
+	    idx.runPages = pageCount;
+	    idx.restarts = restarts;
+	    return idx;
+	} catch (SdbmException e) {
+	    return null;
+	} finally {
+	    if (idx == null) {
+		ch.close();
+	    }
+	}
+    }
+
+    /**
+     * Reads the keys of a run from a key stored in full on, count of
+     * them at most.
+     */
+    private static class RunReader implements Keys {
+	FileChannel ch;
+	ByteBuffer buf = ByteBuffer.allocate(2 * Page.MAXPAGESIZE);
+	long filePos;            // where buf was read up to
+	long pos;                // of the next key
+	long left;
+	int shared;              // of the last key
+	byte[] prev = new byte[0];
+
+	RunReader(FileChannel ch, long pos, long count) {
+	    this.ch = ch;
+	    this.filePos = pos;
+	    this.pos = pos;
+	    this.left = count;
+	    buf.limit(0);
+	}
+
+	public byte[] next() throws IOException {
+	    if (left == 0 || !fill(8)) {
+		return null;
+	    }
+	    shared = buf.getInt();
+	    int rest = buf.getInt();
+	    if (shared < 0 || shared > prev.length || rest < 0 ||
+		shared + rest > Page.MAXPAGESIZE || !fill(rest)) {
+		throw new SdbmException("Corrupt index at "+pos);
+	    }
+	    byte[] key = new byte[shared + rest];
+	    System.arraycopy(prev,0,key,0,shared);
+	    buf.get(key,shared,rest);
+	    pos += 8 + rest;
+	    left--;
+	    prev = key;
+	    return key;
+	}
+
+	/**
+	 * @return false if the run ends before n more bytes.
+	 */
+	private boolean fill(int n) throws IOException {
+	    if (buf.remaining() >= n) {
+		return true;
+	    }
+	    buf.compact();
+	    while (buf.position() < n) {
+		int r = ch.read(buf,filePos);
+		if (r < 0) {
+		    buf.flip();
+		    return false;
+		}
+		filePos += r;
+	    }
+	    buf.flip();
+	    return true;
+	}
+    }
+
+    /**
+     * Writes a run, forced to disk by close().
+     */
+    private static class RunWriter {
+	FileOutputStream fos;
+	DataOutputStream out;
+	long pos = HEADER;
+	long count;
+	byte[] prev = new byte[0];
+	List<Restart> restarts = new ArrayList<Restart>();
+
+	RunWriter(File f, long pairs, long pages) throws IOException {
+	    fos = new FileOutputStream(f);
+	    out = new DataOutputStream(new BufferedOutputStream(fos,65536));
+	    out.writeInt(MAGIC);
+	    out.writeLong(pairs);
+	    out.writeLong(pages);
+	}
+
+	void add(byte[] key) throws IOException {
+	    int shared = 0;
+	    if (count % RESTART == 0) {
+		restarts.add(new Restart(key,pos,count));
+	    } else {
+		int n = Math.min(prev.length,key.length);
+		while (shared < n && prev[shared] == key[shared]) {
+		    shared++;
+		}
+	    }
+	    out.writeInt(shared);
+	    out.writeInt(key.length - shared);
+	    out.write(key,shared,key.length - shared);
+	    pos += 8 + key.length - shared;
+	    count++;
+	    prev = key;
+	}
+
+	void close() throws IOException {
+	    try {
+		out.flush();
+		fos.getChannel().force(true);
+	    } finally {
+		out.close();
+	    }
+	}
+    }
+}
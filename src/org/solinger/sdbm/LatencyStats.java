@@ -0,0 +1,74 @@
+package org.solinger.sdbm;
+
+/**
+ * A snapshot of the latencies of one kind of operation.  Percentiles
+ * are the upper end of the bucket they fall in, which is at most 25%
+ * above the real value.
+ *
+ * @see SdbmMetrics
+ */
+public class LatencyStats {
+
+    private long[] counts;
+    private long count;
+    private long totalNanos;
+
+    LatencyStats(long[] counts, long totalNanos) {
+	this.counts = counts;
+	this.totalNanos = totalNanos;
+	for (int i=0;i<counts.length;i++) {
+	    count += counts[i];
+	}
+    }
+
+    /** @return the number of operations. */
+    public long getCount() {
+	return count;
+    }
+
+    /** @return the time taken by all of them. */
+    public long getTotalNanos() {
+	return totalNanos;
+    }
+
+    /** @return the mean time, 0 if there were none. */
+    public double getMeanNanos() {
+	return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    /**
+     * @param p the percentile, from 0 to 100.
+     * @return the time p% of the operations took at most, 0 if there
+     * were none.
+     */
+    public long getPercentileNanos(double p) {
+	long rank = (long) Math.ceil(count * p / 100);
+	long seen = 0;
+	for (int i=0;i<counts.length;i++) {
+	    seen += counts[i];
+	    if (seen >= Math.max(1,rank)) {
+		return i + 1 < counts.length ?
+		    Histogram.lowest(i + 1) - 1 : Long.MAX_VALUE;
+	    }
+	}
+	return 0;
+    }
+
+    public long getMedianNanos() {
+	return getPercentileNanos(50);
+    }
+
+    public long getP99Nanos() {
+	return getPercentileNanos(99);
+    }
+
+    public long getP999Nanos() {
+	return getPercentileNanos(99.9);
+    }
+
+    public String toString() {
+	return "LatencyStats[count="+count+",mean="+(long) getMeanNanos()+
+	    "ns,median="+getMedianNanos()+"ns,p99="+getP99Nanos()+
+	    "ns,p999="+getP999Nanos()+"ns]";
+    }
+}
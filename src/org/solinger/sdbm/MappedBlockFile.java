@@ -0,0 +1,167 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BlockFile over memory mapped regions of the file, so that a block
+ * read is a memory copy rather than a seek and a read system call.
+ * <p>
+ * The file is mapped in segments of at most SEGSIZ bytes so that files
+ * over 2GB can be mapped.  In "rw" mode the last segment is remapped at
+ * twice its size whenever a write lands past its end, which extends the
+ * file on disk; close() truncates it back to its logical length.
+ * A file left over-long by a crash only carries trailing zeros, which
+ * read as empty pages and clear directory bits.
+ * <p>
+ * Reads don't lock, they work on duplicates of the mapped buffers.
+ * Writes, which may remap, are serialized by a ReentrantLock, which
+ * unlike a monitor doesn't pin a virtual thread to its carrier.
+ */
+class MappedBlockFile implements BlockFile {
+
+    static final int SEGSHIFT = 30;
+    static final long SEGSIZ = 1L << SEGSHIFT;
+    static final long MINMAP = 64 * 1024;
+
+    RandomAccessFile raf;
+    FileChannel channel;
+    boolean writable;
+    volatile MappedByteBuffer[] segs = new MappedByteBuffer[0];
+    volatile long length;    // logical length, mapped regions may be longer
+    final ReentrantLock lock = new ReentrantLock();
+
+    MappedBlockFile(File f, String mode) throws IOException {
+	raf = new RandomAccessFile(f,mode);
+	channel = raf.getChannel();
+	writable = mode.equals("rw");
+	length = channel.size();
+	if (length > 0) {
+	    map(length);
+	}
+    }
+
+    /**
+     * make sure that bytes [0,end) are backed by a mapping.
+     */
+    private void map(long end) throws IOException {
+	int n = (int) ((end - 1) >>> SEGSHIFT) + 1;
+	// work on a copy, readers may be looking at the current array.
+	MappedByteBuffer[] old = this.segs;
+	MappedByteBuffer[] segs = new MappedByteBuffer[Math.max(n,old.length)];
+	System.arraycopy(old,0,segs,0,old.length);
+
+	for (int i=0;i<n;i++) {
+	    long start = (long) i << SEGSHIFT;
+	    long need = Math.min(end - start, SEGSIZ);
+	    if (segs[i] != null && segs[i].capacity() >= need) {
+		continue;
+	    }
+
+	    long size = need;
+	    if (writable) {
+		// grow geometrically so that appends don't remap every time.
+		size = Math.max(MINMAP, segs[i] == null ? 0 : 
+				2L * segs[i].capacity());
+		while (size < need) {
+		    size <<= 1;
+		}
+		size = Math.min(size, SEGSIZ);
+	    }
+	    segs[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE :
+				  FileChannel.MapMode.READ_ONLY, start, size);
+	}
+	this.segs = segs;
+    }
+
+    public void read(long pos, byte[] b, int off, int len) 
+	throws IOException {
+	read(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+	int n = (int) Math.max(0, Math.min(dst.remaining(), length - pos));
+	transfer(pos,dst,n,false);
+	// past the end of the file, the rest is a hole.
+	while (dst.hasRemaining()) {
+	    dst.put((byte) 0);
+	}
+    }
+
+    public void write(long pos, byte[] b, int off, int len) 
+	throws IOException {
+	write(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+	if (!writable) {
+	    throw new IOException("This file is opened Read only");
+	}
+	lock.lock();
+	try {
+	    int len = src.remaining();
+	    map(pos + len);
+	    transfer(pos,src,len,true);
+	    length = Math.max(length, pos + len);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void transfer(long pos, ByteBuffer b, int len, boolean write) {
+	MappedByteBuffer[] segs = this.segs;
+	while (len > 0) {
+	    // duplicate so that we never disturb a shared buffer position
+	    ByteBuffer seg = segs[(int) (pos >>> SEGSHIFT)].duplicate();
+	    int p = (int) (pos & (SEGSIZ - 1));
+	    int n = Math.min(len, seg.capacity() - p);
+	    seg.limit(p + n);
+	    seg.position(p);
+	    if (write) {
+		int lim = b.limit();
+		b.limit(b.position() + n);
+		seg.put(b);
+		b.limit(lim);
+	    } else {
+		b.put(seg);
+	    }
+	    pos += n;
+	    len -= n;
+	}
+    }
+
+    public long length() {
+	return length;
+    }
+
+    public void force() throws IOException {
+	lock.lock();
+	try {
+	    MappedByteBuffer[] segs = this.segs;
+	    for (int i=0;i<segs.length;i++) {
+		segs[i].force();
+	    }
+	    channel.force(true);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public void close() throws IOException {
+	lock.lock();
+	try {
+	    segs = new MappedByteBuffer[0];
+	    try {
+		if (writable) {
+		    channel.truncate(length);
+		}
+	    } finally {
+		raf.close();
+	    }
+	} finally {
+	    lock.unlock();
+	}
+    }
+}
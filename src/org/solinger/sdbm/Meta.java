@@ -0,0 +1,111 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * The name.meta header of a database: what it was written with and,
+ * after a clean shutdown, how many pairs it holds so that opening it
+ * needn't read every page.  Sdbm marks it unclean before it first
+ * modifies the files and clean again on close(), a file that is
+ * unclean or doesn't match the .pag means a scan.  A missing file
+ * means a database from before the header, a corrupt one is an error:
+ * guessing the page size and hash function would misread every page.
+ * <pre>
+ *   int   magic 'SDBM'
+ *   short version
+ *   int   page size
+ *   int   hash function id
+ *   long  number of pairs
+ *   long  number of pages
+ *   byte  clean
+ *   long  CRC32 of the above
+ * </pre>
+ */
+class Meta {
+
+    static final int MAGIC = 0x5344424d;
+    static final int VERSION = 1;
+    static final int SIZE = 4 + 2 + 4 + 4 + 8 + 8 + 1 + 8;
+
+    int pageSize = Sdbm.PBLKSIZ;
+    int hashId;
+    long elementCount;
+    long pageCount;
+    boolean clean;
+
+    /**
+     * @return the header in f, or null if there is none.
+     * @exception SdbmException if f is corrupt.
+     */
+    static Meta read(File f) throws IOException {
+	if (!f.exists()) {
+	    return null;
+	}
+	if (f.length() != SIZE) {
+	    throw new SdbmException("Corrupt header "+f);
+	}
+	byte[] b = new byte[SIZE];
+	DataInputStream in = new DataInputStream(new FileInputStream(f));
+	try {
+	    in.readFully(b);
+	} catch (EOFException e) {
+	    throw new SdbmException("Corrupt header "+f);
+	} finally {
+	    in.close();
+	}
+
+	in = new DataInputStream(new ByteArrayInputStream(b));
+	Meta m = new Meta();
+	if (in.readInt() != MAGIC) {
+	    throw new SdbmException("Corrupt header "+f);
+	}
+	int version = in.readShort();
+	m.pageSize = in.readInt();
+	m.hashId = in.readInt();
+	m.elementCount = in.readLong();
+	m.pageCount = in.readLong();
+	m.clean = in.readByte() != 0;
+	CRC32 crc = new CRC32();
+	crc.update(b,0,SIZE - 8);
+	if (in.readLong() != crc.getValue()) {
+	    throw new SdbmException("Corrupt header "+f);
+	}
+	if (version != VERSION) {
+	    throw new SdbmException("Unknown database version "+version);
+	}
+	return m;
+    }
+
+    /**
+     * Writes the header to f and forces it to disk.  It is written to
+     * f.tmp first and renamed over f, so that a crash leaves either the
+     * old header or the new one, never a torn one.
+     */
+    void write(File f) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(SIZE);
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.writeInt(MAGIC);
+	out.writeShort(VERSION);
+	out.writeInt(pageSize);
+	out.writeInt(hashId);
+	out.writeLong(elementCount);
+	out.writeLong(pageCount);
+	out.writeByte(clean ? 1 : 0);
+	CRC32 crc = new CRC32();
+	crc.update(bytes.toByteArray());
+	out.writeLong(crc.getValue());
+
+	File tmp = new File(f.getPath()+".tmp");
+	FileOutputStream fos = new FileOutputStream(tmp);
+	try {
+	    fos.write(bytes.toByteArray());
+	    fos.getChannel().force(true);
+	} finally {
+	    fos.close();
+	}
+	Files.move(tmp.toPath(),f.toPath(),StandardCopyOption.ATOMIC_MOVE);
+    }
+}
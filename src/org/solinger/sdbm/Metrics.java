@@ -0,0 +1,86 @@
+package org.solinger.sdbm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live counters of an Sdbm opened with metrics on, updated from
+ * the hot paths without locking.  Sdbm keeps a null one when metrics
+ * are off, so they cost a test of a field.
+ */
+class Metrics implements SdbmMXBean {
+
+    Sdbm db;
+    Histogram get = new Histogram();
+    Histogram getAll = new Histogram();
+    Histogram put = new Histogram();
+    Histogram remove = new Histogram();
+    Histogram compact = new Histogram();
+    LongAdder splits = new LongAdder();
+    LongAdder splitFailures = new LongAdder();
+    LongAdder directoryWrites = new LongAdder();
+
+    // the counts of the page caches replaced by compact() and clear().
+    long retiredHits, retiredReads, retiredWrites;
+
+    Metrics(Sdbm db) {
+	this.db = db;
+    }
+
+    /**
+     * Keeps the counts of a page cache that is being thrown away.  Call
+     * it holding the write lock.
+     */
+    synchronized void retire(CacheStats s) {
+	retiredHits += s.getHits();
+	retiredReads += s.getMisses();
+	retiredWrites += s.getWrites();
+    }
+
+    public int getSize() {
+	return db.size();
+    }
+
+    public LatencyStats getGetLatency() {
+	return get.getStats();
+    }
+
+    public LatencyStats getGetAllLatency() {
+	return getAll.getStats();
+    }
+
+    public LatencyStats getPutLatency() {
+	return put.getStats();
+    }
+
+    public LatencyStats getRemoveLatency() {
+	return remove.getStats();
+    }
+
+    public LatencyStats getCompactLatency() {
+	return compact.getStats();
+    }
+
+    public synchronized long getPageCacheHits() {
+	return retiredHits + db.getPageCacheStats().getHits();
+    }
+
+    public synchronized long getPageReads() {
+	return retiredReads + db.getPageCacheStats().getMisses();
+    }
+
+    public synchronized long getPageWrites() {
+	return retiredWrites + db.getPageCacheStats().getWrites();
+    }
+
+    public long getSplits() {
+	return splits.sum();
+    }
+
+    public long getSplitFailures() {
+	return splitFailures.sum();
+    }
+
+    public long getDirectoryWrites() {
+	return directoryWrites.sum();
+    }
+}
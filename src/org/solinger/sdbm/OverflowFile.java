@@ -0,0 +1,197 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The name.ovf file holding values too big for a page.  A value is
+ * kept in a chain of blocks, each starting with the number of the next
+ * one (0 ends the chain), and the page holds a REFSIZ byte reference to
+ * it: the first block and the length.  Block 0 heads the list of free
+ * blocks, chains that are freed are pushed on it whole and reused a
+ * block at a time.  All numbers are little endian like the page
+ * offsets.
+ * <p>
+ * The file is only created on the first write.  Reads may run
+ * concurrently, writes and frees need the database's write lock.
+ * With a write-ahead log the blocks are written through it.
+ */
+class OverflowFile {
+
+    static final int REFSIZ = 8;
+    private static final int NEXTSIZ = 4;
+
+    File file;
+    String mode;
+    int blockSize;
+    WriteAheadLog wal;       // null if there is none
+    BlockFile f;             // null until there is a file
+    int free;                // first free block, 0 if none
+    int blocks;              // blocks in the file, with the header
+
+    OverflowFile(File file, String mode, int blockSize) throws IOException {
+	this(file,mode,blockSize,null);
+    }
+
+    OverflowFile(File file, String mode, int blockSize, WriteAheadLog wal)
+	throws IOException {
+	this.file = file;
+	this.mode = mode;
+	this.blockSize = blockSize;
+	this.wal = wal;
+	if (file.exists()) {
+	    open();
+	}
+    }
+
+    private void open() throws IOException {
+	f = new RandomAccessBlockFile(file,mode);
+	if (wal != null) {
+	    f = wal.wrap(Sdbm.OVF,f,blockSize);
+	}
+	blocks = (int) ((f.length() + blockSize - 1) / blockSize);
+	if (blocks == 0) {
+	    blocks = 1;
+	}
+	free = readNext(0);
+    }
+
+    private int readNext(int bno) throws IOException {
+	byte[] b = new byte[NEXTSIZ];
+	f.read((long) bno * blockSize,b,0,NEXTSIZ);
+	return getInt(b,0);
+    }
+
+    private void writeNext(int bno, int next) throws IOException {
+	byte[] b = new byte[NEXTSIZ];
+	putInt(b,0,next);
+	f.write((long) bno * blockSize,b,0,NEXTSIZ);
+    }
+
+    static int getInt(byte[] b, int off) {
+	return (b[off] & 0xff) | (b[off+1] & 0xff) << 8 |
+	    (b[off+2] & 0xff) << 16 | (b[off+3] & 0xff) << 24;
+    }
+
+    static void putInt(byte[] b, int off, int val) {
+	b[off] = (byte) val;
+	b[off+1] = (byte) (val >>> 8);
+	b[off+2] = (byte) (val >>> 16);
+	b[off+3] = (byte) (val >>> 24);
+    }
+
+    /**
+     * @return the length of the value ref points to.
+     */
+    static int length(byte[] ref) {
+	return getInt(ref,NEXTSIZ);
+    }
+
+    /**
+     * Stores b[off..off+len) in a new chain.
+     *
+     * @return the reference to keep in the page.
+     */
+    byte[] write(byte[] b, int off, int len) throws IOException {
+	if (f == null) {
+	    open();
+	}
+	int data = blockSize - NEXTSIZ;
+	int n = Math.max(1,(len + data - 1) / data);
+
+	// take the blocks first, each one has to know its successor.
+	int[] chain = new int[n];
+	for (int i=0;i<n;i++) {
+	    if (free != 0) {
+		chain[i] = free;
+		free = readNext(free);
+	    } else {
+		chain[i] = blocks++;
+	    }
+	}
+
+	byte[] blk = new byte[blockSize];
+	for (int i=0;i<n;i++) {
+	    putInt(blk,0,i + 1 < n ? chain[i+1] : 0);
+	    int cnt = Math.min(data,len - i * data);
+	    System.arraycopy(b,off + i * data,blk,NEXTSIZ,cnt);
+	    f.write((long) chain[i] * blockSize,blk,0,NEXTSIZ + cnt);
+	}
+	writeNext(0,free);
+
+	byte[] ref = new byte[REFSIZ];
+	putInt(ref,0,chain[0]);
+	putInt(ref,NEXTSIZ,len);
+	return ref;
+    }
+
+    /**
+     * @return the value ref points to.
+     */
+    byte[] read(byte[] ref) throws IOException {
+	byte[] b = new byte[length(ref)];
+	read(ref,ByteBuffer.wrap(b));
+	return b;
+    }
+
+    /**
+     * Copies the value ref points to into out if it has room, like
+     * Page.get(byte[],int,int,ByteBuffer).
+     *
+     * @return the length of the value.
+     */
+    int read(byte[] ref, ByteBuffer out) throws IOException {
+	int len = length(ref);
+	if (len > out.remaining()) {
+	    return len;
+	}
+	if (f == null) {
+	    throw new SdbmException("Missing overflow file "+file);
+	}
+	int data = blockSize - NEXTSIZ;
+	byte[] next = new byte[NEXTSIZ];
+	int bno = getInt(ref,0);
+	for (int left = len;left > 0;) {
+	    if (bno <= 0 || bno >= blocks) {
+		throw new SdbmException("Corrupt overflow chain in "+file);
+	    }
+	    long pos = (long) bno * blockSize;
+	    int cnt = Math.min(data,left);
+	    ByteBuffer dst = out.duplicate();
+	    dst.limit(dst.position() + cnt);
+	    f.read(pos + NEXTSIZ,dst);
+	    out.position(out.position() + cnt);
+	    left -= cnt;
+	    if (left > 0) {
+		f.read(pos,next,0,NEXTSIZ);
+		bno = getInt(next,0);
+	    }
+	}
+	return len;
+    }
+
+    /**
+     * Puts the chain ref points to on the free list.
+     */
+    void free(byte[] ref) throws IOException {
+	int first = getInt(ref,0);
+	int last = first;
+	for (int next;(next = readNext(last)) != 0;) {
+	    last = next;
+	}
+	writeNext(last,free);
+	free = first;
+	writeNext(0,free);
+    }
+
+    long length() throws IOException {
+	return f == null ? 0 : f.length();
+    }
+
+    void close() throws IOException {
+	if (f != null) {
+	    f.close();
+	    f = null;
+	}
+    }
+}
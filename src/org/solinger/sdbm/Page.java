@@ -1,5 +1,6 @@
 package org.solinger.sdbm;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 
@@ -17,10 +18,20 @@ import java.util.*;
 
 public class Page implements Cloneable {
 
+    /** the largest page size, offsets must stay below OVERFLOW. */
+    public static final int MAXPAGESIZE = 32768;
+    /** set in the offset of a value that is kept in the overflow file. */
+    static final int OVERFLOW = 0x8000;
+
     public byte[] pag;
     public int bno; //FIX this should be seperate from the page.
     public int pageSize;
 
+    // the hash of each key, built by the first indexOfValue() that is
+    // given a hash and dropped by put() and remove().  Never on disk.
+    // Code that writes pag directly must call dropFingerprints().
+    private volatile int[] fp;
+
     public Page(int pageSize) {
 	this.pageSize = pageSize;
 	this.pag = new byte[pageSize];
@@ -38,16 +49,21 @@ public class Page implements Cloneable {
     }
 
     /**
-     * Returns a short from two bytes with MSB last (little endian)
+     * Returns an unsigned short from two bytes with MSB last (little
+     * endian), without the OVERFLOW flag.
      */
-    private short getIno(int i) {
-	return (short) (((pag[2*i+1] & 0xff) << 8) | (pag[2*i] & 0xff));
+    private int getIno(int i) {
+	return rawIno(i) & ~OVERFLOW;
+    }
+
+    private int rawIno(int i) {
+	return ((pag[2*i+1] & 0xff) << 8) | (pag[2*i] & 0xff);
     }
 
     /**
      * Sets a short from two bytes with MSB last (little endian)
      */
-    private void setIno(int i, short val) {
+    private void setIno(int i, int val) {
 	pag[2*i+1] = (byte) ((val >>> 8) & 0xff);
 	pag[2*i] = (byte) (val & 0xff);
     }
@@ -73,6 +89,9 @@ public class Page implements Cloneable {
      * of entries (ino[0]) is zero, the offset to the END of
      * the free area is the block size. Otherwise, it is the
      * nth (ino[ino[0]]) entry's offset.
+     *
+     * offsets are unsigned, the top bit of a datoff is the OVERFLOW
+     * flag.
      */
     public boolean hasRoom(int need) {
 	int n;
@@ -90,13 +109,32 @@ public class Page implements Cloneable {
     }
 
     public byte[] put(byte[] key, byte[] val) {
+	put(key,0,key.length,val,0,val.length);
+	return val;
+    }
+
+    /**
+     * Puts the pair key[koff..koff+klen), val[voff..voff+vlen).
+     */
+    public void put(byte[] key, int koff, int klen,
+		    byte[] val, int voff, int vlen) {
+	put(key,koff,klen,val,voff,vlen,false);
+    }
+
+    /**
+     * @param overflow if true val is a reference into the overflow file
+     * rather than the value itself, see isOverflow().
+     */
+    public void put(byte[] key, int koff, int klen,
+		    byte[] val, int voff, int vlen, boolean overflow) {
 	// Remove any previous values
-	remove(key);
+	remove(key,koff,klen);
+	fp = null;
 
-	if (!hasRoom(key.length+val.length)) {
+	if (!hasRoom(klen+vlen)) {
 	    throw new IllegalStateException
-		("Not enough room for : key="+new String(key)+",val="+
-		 new String(val));
+		("Not enough room for : key="+new String(key,koff,klen)+",val="+
+		 new String(val,voff,vlen));
 	}
 
 	int n;
@@ -105,24 +143,30 @@ public class Page implements Cloneable {
 	off = ((n = getIno(0)) > 0) ? getIno(n) : pageSize;
 
 	// enter the key first
-	off -= key.length;
-	System.arraycopy(key,0,pag,off,key.length);
-	setIno(n+1,(short) off);
+	off -= klen;
+	System.arraycopy(key,koff,pag,off,klen);
+	setIno(n+1,off);
 
 	// now the data
-	off -= val.length;
-	System.arraycopy(val,0,pag,off,val.length);
-	setIno(n+2,(short) off);
+	off -= vlen;
+	System.arraycopy(val,voff,pag,off,vlen);
+	setIno(n+2,overflow ? off | OVERFLOW : off);
 
 
 	// adjust item count
-	setIno(0,(short) (getIno(0)+2));
-	return val;
+	setIno(0,getIno(0)+2);
     }
 
     public byte[] get(byte[] key) {
+	return get(key,0,key.length);
+    }
+
+    /**
+     * @return the value of the key in key[off..off+len), or null.
+     */
+    public byte[] get(byte[] key, int off, int len) {
 	int i;
-	if ((i = indexOfValue(key)) == -1) {
+	if ((i = indexOfValue(key,off,len)) == -1) {
 	    return null;
 	}
 	byte[] b = new byte[getIno(i)-getIno(i+1)];
@@ -130,6 +174,26 @@ public class Page implements Cloneable {
 	return b;
     }
 
+    /**
+     * Copies the value of the key in key[off..off+len) into out, without
+     * allocating anything.  If out doesn't have room for the value
+     * nothing is copied.
+     *
+     * @return the length of the value, or -1 if the key isn't there.
+     */
+    public int get(byte[] key, int off, int len, ByteBuffer out) {
+	int i;
+	if ((i = indexOfValue(key,off,len)) == -1) {
+	    return -1;
+	}
+	int voff = getIno(i+1);
+	int vlen = getIno(i)-voff;
+	if (vlen <= out.remaining()) {
+	    out.put(pag,voff,vlen);
+	}
+	return vlen;
+    }
+
     public byte[] getKeyAt(int n) {
 	if (n >= size()) {
 	    throw new ArrayIndexOutOfBoundsException(n);
@@ -156,6 +220,58 @@ public class Page implements Cloneable {
 	return b;
     }
 
+    /**
+     * Copies the nth value into out if it has room, like
+     * get(byte[],int,int,ByteBuffer).
+     *
+     * @return the length of the value.
+     */
+    public int getElementAt(int n, ByteBuffer out) {
+	if (n >= size()) {
+	    throw new ArrayIndexOutOfBoundsException(n);
+	}
+
+	int off = getIno(n*2+2);
+	int len = getIno((n*2+2)-1) - off;
+	if (len <= out.remaining()) {
+	    out.put(pag,off,len);
+	}
+	return len;
+    }
+
+    /**
+     * @return where the nth key starts in pag, for reading it in place.
+     */
+    int keyOffset(int n) {
+	return getIno(n*2+1);
+    }
+
+    int keyLength(int n) {
+	return (n == 0 ? pageSize : getIno(n*2)) - getIno(n*2+1);
+    }
+
+    /**
+     * @return where the nth value starts in pag.
+     */
+    int elementOffset(int n) {
+	return getIno(n*2+2);
+    }
+
+    int elementLength(int n) {
+	return getIno(n*2+1) - getIno(n*2+2);
+    }
+
+    /**
+     * @return true if the nth value is only a reference to the real
+     * one, which was too big for the page.
+     */
+    public boolean isOverflow(int n) {
+	if (n >= size()) {
+	    throw new ArrayIndexOutOfBoundsException(n);
+	}
+	return (rawIno(n*2+2) & OVERFLOW) != 0;
+    }
+
     public Enumeration keys() {
 	return new Enumerator(true);
     }
@@ -198,6 +314,14 @@ public class Page implements Cloneable {
     }
 
     public byte[] remove(byte[] key) {
+	return remove(key,0,key.length);
+    }
+
+    /**
+     * Removes the key in key[koff..koff+klen).
+     * @return the removed value, or null.
+     */
+    public byte[] remove(byte[] key, int koff, int klen) {
 	int n;
 	int i;
 
@@ -205,7 +329,7 @@ public class Page implements Cloneable {
 	if ((n = getIno(0)) == 0) {
 	    return null;
 	}
-	if ((i = indexOfValue(key)) == -1) {
+	if ((i = indexOfValue(key,koff,klen)) == -1) {
 	    return null;
 	}
 
@@ -228,13 +352,14 @@ public class Page implements Cloneable {
 	    m = getIno(i+1) - getIno(n);
 	    System.arraycopy(pag,src-m,pag,dst-m,m);
 
-	    //adjust offset index up
+	    //adjust offset index up, keeping the overflow flags
 	    while (i < n - 1) {
-		setIno(i, (short) (getIno(i+2) + zoo));
+		setIno(i, rawIno(i+2) + zoo);
 		i++;
 	    }
 	}
-	setIno(0,(short) (getIno(0)-2));
+	setIno(0,getIno(0)-2);
+	fp = null;
 	return val;
     }
 
@@ -244,7 +369,11 @@ public class Page implements Cloneable {
      * @return true if the page contains the key
      */
     public boolean containsKey(byte[] key) {
-	return indexOfValue(key) != -1;
+	return indexOfValue(key,0,key.length) != -1;
+    }
+
+    public boolean containsKey(byte[] key, int off, int len) {
+	return indexOfValue(key,off,len) != -1;
     }
 
     /**
@@ -253,10 +382,16 @@ public class Page implements Cloneable {
      * return -1 if not found.
      */
     public int indexOfValue(byte[] key) {
+	return indexOfValue(key,0,key.length);
+    }
+
+    /**
+     * search for the key in key[koff..koff+siz).
+     */
+    public int indexOfValue(byte[] key, int koff, int siz) {
 	int n;
 	int i;
 	int off = pageSize;
-	int siz = key.length;
 
 	if ((n = getIno(0)) == 0) {
 	    return -1;
@@ -272,7 +407,7 @@ public class Page implements Cloneable {
 	    //		   substring(getIno(i),getIno(i)+siz).equals(key));
 	    //}
 	    if (siz == off - getIno(i) &&
-	        byteArraysEqual(pag,getIno(i),key,0,siz)) {
+	        byteArraysEqual(pag,getIno(i),key,koff,siz)) {
 		return i;
 	    }
 	    off = getIno(i+1);
@@ -280,6 +415,55 @@ public class Page implements Cloneable {
 	return -1;
     }
 
+    /**
+     * search for the key in key[koff..koff+siz), whose hash is hash.
+     * The keys are told apart by their hashes first, which are worked
+     * out with hf on the first call after a change of the page, so the
+     * bytes of a key are only compared if its hash matches.  Any
+     * number of threads may call it at once as long as the page isn't
+     * modified.
+     */
+    public int indexOfValue(byte[] key, int koff, int siz,
+			    int hash, HashFunction hf) {
+	int[] f = fp;
+	if (f == null) {
+	    // racing readers build the same array, any of them will do.
+	    f = fingerprints(hf);
+	    fp = f;
+	}
+
+	for (int j=0;j<f.length;j++) {
+	    if (f[j] == hash) {
+		int i = 2*j+1;
+		int off = getIno(i);
+		if (siz == (j == 0 ? pageSize : getIno(i-1)) - off &&
+		    byteArraysEqual(pag,off,key,koff,siz)) {
+		    return i;
+		}
+	    }
+	}
+	return -1;
+    }
+
+    private int[] fingerprints(HashFunction hf) {
+	int n = size();
+	int[] f = new int[n];
+	int end = pageSize;
+	for (int j=0;j<n;j++) {
+	    int off = getIno(2*j+1);
+	    f[j] = hf.hash(pag,off,end-off);
+	    end = getIno(2*j+2);
+	}
+	return f;
+    }
+
+    /**
+     * Forgets the key hashes, for code that modifies pag itself.
+     */
+    public void dropFingerprints() {
+	fp = null;
+    }
+
     /**
      * @return true if the page is empty.
      */
@@ -315,6 +499,13 @@ public class Page implements Cloneable {
     }
 
     public void split(Page newPage,int sbit) {
+	split(newPage,sbit,HashFunction.SDBM);
+    }
+
+    /**
+     * Moves the pairs whose hash has sbit set to newPage.
+     */
+    public void split(Page newPage, int sbit, HashFunction hf) {
 	byte[] key;
 	byte[] val;
 
@@ -333,10 +524,11 @@ public class Page implements Cloneable {
 	    val = new byte[cur.getIno(i)-cur.getIno(i+1)];
 	    System.arraycopy(cur.pag,cur.getIno(i+1),val,0,cur.getIno(i)-cur.getIno(i+1));
 
-	    //System.out.println("Hash:"+Hash.hash(key));
+	    //System.out.println("Hash:"+hf.hash(key));
 	    // select the page pointer (by looking at sbit) and insert.
-	    Page p = (Hash.hash(key) & sbit) != 0 ? newPage : this;
-	    p.put(key, val);
+	    Page p = (hf.hash(key) & sbit) != 0 ? newPage : this;
+	    p.put(key,0,key.length,val,0,val.length,
+		  (cur.rawIno(i+1) & OVERFLOW) != 0);
 
 	    off = cur.getIno(i+1);
 	    n -= 2;
@@ -0,0 +1,187 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads a range of .pag blocks in large sequential chunks and hands
+ * out the pages from them, for scans of the whole database.  Each
+ * chunk is read holding the read lock and remembers the database's
+ * modCount; if the database changes before its pages are handed out
+ * they are read again one at a time, so a scan sees what reading each
+ * page as it goes would.
+ * <p>
+ * hasNext() gets hold of the chunk of the next page, next() copies the
+ * page out of it and has to be called holding one of the locks, so
+ * that the caller can read the page's overflow values with it.
+ * <p>
+ * With read ahead the following chunk is read on a background thread
+ * while the current one is used, which lets the disk work while the
+ * pages are processed.  The background read takes the read lock
+ * unless the thread that made the scanner held a lock at the time, in
+ * which case it has to keep it until close().
+ */
+class PageScanner {
+
+    private static ExecutorService readers;
+
+    Sdbm db;
+    int pageSize;
+    int bno;                 // next page
+    int end;                 // past the last page, -1 for the end of file
+    int chunkPages;
+    boolean held;            // the scanning thread holds a lock throughout
+    Chunk cur;
+    Future<Chunk> ahead;     // the next chunk, or null
+    byte[] spare;            // the buffer of the last chunk
+
+    private static class Chunk {
+	int first;
+	int count;
+	int modCount;
+	byte[] b;
+    }
+
+    /**
+     * @param end past the last page to read, or -1 to read on to the
+     * end of the file, however long it gets.
+     */
+    PageScanner(Sdbm db, int bno, int end) {
+	this.db = db;
+	this.pageSize = db.pageSize;
+	this.bno = bno;
+	this.end = end;
+	this.chunkPages = Math.max(1, db.options.getScanBufferSize() / pageSize);
+	this.held = db.lock.getReadHoldCount() > 0 ||
+	    db.lock.isWriteLockedByCurrentThread();
+	if (db.options.getScanReadAhead() && chunkPages > 1) {
+	    ahead = submit(bno,null);
+	}
+    }
+
+    private static synchronized ExecutorService readers() {
+	if (readers == null) {
+	    readers = Executors.newCachedThreadPool(new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"PageScanner");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	}
+	return readers;
+    }
+
+    private Future<Chunk> submit(final int first, final byte[] b) {
+	return readers().submit(new Callable<Chunk>() {
+		public Chunk call() throws IOException {
+		    return read(first,b,!held);
+		}
+	    });
+    }
+
+    /**
+     * Reads the chunk starting at page first, into b if it is big
+     * enough.
+     *
+     * @return null past the end.
+     */
+    private Chunk read(int first, byte[] b, boolean lock) throws IOException {
+	if (lock) {
+	    db.lock.readLock().lock();
+	}
+	try {
+	    long length = db.pagf.length();
+	    int last = end >= 0 ? end : (int) ((length + pageSize - 1) / pageSize);
+	    int count = Math.min(chunkPages, last - first);
+	    if (count <= 0) {
+		return null;
+	    }
+	    Chunk c = new Chunk();
+	    c.first = first;
+	    c.count = count;
+	    c.b = b != null && b.length >= count * pageSize ? b :
+		new byte[count * pageSize];
+	    c.modCount = db.modCount;
+	    db.pagf.read((long) first * pageSize, c.b, 0, count * pageSize);
+	    return c;
+	} finally {
+	    if (lock) {
+		db.lock.readLock().unlock();
+	    }
+	}
+    }
+
+    /**
+     * Waits for the chunk of the next page if need be.  Don't call it
+     * holding a lock unless one was held when the scanner was made.
+     *
+     * @return false at the end.
+     */
+    boolean hasNext() throws IOException {
+	if (cur != null && bno < cur.first + cur.count) {
+	    return true;
+	}
+	if (cur != null) {
+	    spare = cur.b;
+	}
+	cur = null;
+	if (ahead != null) {
+	    try {
+		cur = ahead.get();
+	    } catch (InterruptedException e) {
+		throw new InterruptedIOException(e.getMessage());
+	    } catch (ExecutionException e) {
+		if (e.getCause() instanceof IOException) {
+		    throw (IOException) e.getCause();
+		}
+		throw new SdbmException(e.getCause().toString());
+	    } finally {
+		ahead = null;
+	    }
+	}
+	if (cur == null) {
+	    // read ahead may have found the end before the file grew.
+	    cur = read(bno,spare,!held);
+	    spare = null;
+	}
+	if (cur == null) {
+	    return false;
+	}
+	if (db.options.getScanReadAhead()) {
+	    ahead = submit(cur.first + cur.count,spare);
+	    spare = null;
+	}
+	return true;
+    }
+
+    /**
+     * Reads the next page into p, the caller holding a lock and
+     * hasNext() having returned true.
+     */
+    void next(Page p) throws IOException {
+	if (cur.modCount != db.modCount) {
+	    db.loadPage(bno,p);
+	} else if (!db.options.getWriteBack() || !db.pageCache.peek(bno,p.pag)) {
+	    // only write back leaves newer pages in the cache than on disk.
+	    System.arraycopy(cur.b,(bno - cur.first) * pageSize,p.pag,0,pageSize);
+	}
+	p.bno = bno++;
+	p.dropFingerprints();
+    }
+
+    /**
+     * Waits for a read ahead to finish, which has to be done before
+     * giving up a lock held since the scanner was made.
+     */
+    void close() {
+	if (ahead != null) {
+	    try {
+		ahead.get();
+	    } catch (Exception e) {
+		// nobody wants it.
+	    }
+	    ahead = null;
+	}
+    }
+}
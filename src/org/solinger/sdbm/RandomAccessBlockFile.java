@@ -0,0 +1,67 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BlockFile over the channel of a plain RandomAccessFile.  This is the
+ * default engine.  All I/O is positional, FileChannel.read/write with an
+ * explicit position, so concurrent readers never contend on a shared
+ * file pointer.
+ * <p>
+ * Beware that interrupting a thread blocked in here closes the channel
+ * for everybody, as with any interruptible channel.
+ */
+class RandomAccessBlockFile implements BlockFile {
+
+    RandomAccessFile raf;
+    FileChannel channel;
+
+    RandomAccessBlockFile(File f, String mode) throws IOException {
+	raf = new RandomAccessFile(f,mode);
+	channel = raf.getChannel();
+    }
+
+    public void read(long pos, byte[] b, int off, int len) 
+	throws IOException {
+	read(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+	while (dst.hasRemaining()) {
+	    int count = channel.read(dst,pos);
+	    if (count < 0) {
+		break;
+	    }
+	    pos += count;
+	}
+	// short read, the rest is a hole.
+	while (dst.hasRemaining()) {
+	    dst.put((byte) 0);
+	}
+    }
+
+    public void write(long pos, byte[] b, int off, int len) 
+	throws IOException {
+	write(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+	while (src.hasRemaining()) {
+	    pos += channel.write(src,pos);
+	}
+    }
+
+    public long length() throws IOException {
+	return channel.size();
+    }
+
+    public void force() throws IOException {
+	channel.force(true);
+    }
+
+    public void close() throws IOException {
+	raf.close();
+    }
+}
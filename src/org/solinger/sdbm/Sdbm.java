@@ -1,7 +1,13 @@
 package org.solinger.sdbm;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 /**
  * Java rewrite of sdbm.
@@ -14,12 +20,15 @@ import java.util.*;
  * @version .01 06/06/98
  *
  * core routines
+ *
+ * Any number of threads may look keys up at once; put, remove and the
+ * other modifications take the database exclusively.
  */
 
-public class Sdbm {
+public class Sdbm implements Iterable<Map.Entry<byte[],byte[]>> {
 
     public static final int DBLKSIZ = 4096;
-    public static final int PBLKSIZ = 1024;
+    public static final int PBLKSIZ = 1024;   //default page size
     public static final int PAIRMAX = 1008;   //arbitrary on PBLKSIZ-N
     public static final int SPLTMAX = 10;	    //maximum allowed splits
 
@@ -28,54 +37,299 @@ public class Sdbm {
 
     public static final String DIREXT = ".dir";
     public static final String PAGEXT = ".pag";
-
-
-    RandomAccessFile dirRaf;   // directory file descriptor
-    RandomAccessFile pagRaf;   // page file descriptor
-    File dirFile, pagFile;
+    public static final String METAEXT = ".meta";
+    public static final String OVFEXT = ".ovf";
+    public static final String BLMEXT = ".blm";
+    public static final String WALEXT = ".wal";
+    public static final String IDXEXT = ".idx";
+    public static final String SWAPEXT = ".swap";
+
+    // the files in the write-ahead log.
+    static final int DIR = 0;
+    static final int PAG = 1;
+    static final int OVF = 2;
+
+
+    BlockFile dirf;          // directory file
+    BlockFile pagf;          // page file
+    OverflowFile ovf;        // values too big for a page
+    File dirFile, pagFile, metaFile, ovfFile, blmFile, walFile, idxFile;
+    File swapFile;           // the files compact() is moving into place
+    Meta meta;               // as in metaFile, clean until modified
     String mode;
+    SdbmOptions options;
+    Charset charset;         // for the String methods
     int maxbno;	             // size of dirfile in bits
-    int curbit;	             // current bit number
-    int hmask;		     // current hash mask
-    Page page;               // page file block buffer
-    int dirbno;	             // current block in dirbuf
-    byte[] dirbuf;           // directory file block buffer
+    long[] dirBits;          // the whole dirfile, bit n is dbit n
+    int pageSize;            // .pag block size
+    int pairMax;             // the biggest pair kept in a page
+    HashFunction hashFunction;
+    boolean fingerprints;    // look keys up by hash in the pages
+    BloomFilter bloom;       // the keys, null unless asked for
+    KeyIndex index;          // the keys in order, null unless asked for
+    IOException indexError;  // why the index was dropped
+    Metrics metrics;         // null unless asked for
+    WriteAheadLog wal;       // null unless asked for or left by a crash
+    javax.management.ObjectName mbeanName;
+    BlockCache pageCache;    // page file block buffers
+    SlabStore slabs;         // pages evicted off the heap, or null
+    BlockCache dirCache;     // directory file blocks being written
     int elementCount;        // The number of elements.
+    int modCount;            // bumped by every modification
+    int compactedAt = -1;    // modCount after the last compact()
     Random rand = null;
 
+    // readers share, writers exclude.  Lookups must not touch any
+    // state but the caches, which look after themselves.
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     /**
      * @param name The name of the database, a name.pag and a name.dir file will be created.
      * @param mode The mode to open the database in, either "r" or "rw"
      */
     public Sdbm(File baseDir, String name, String mode) throws IOException {
+	this(baseDir,name,mode,new SdbmOptions());
+    }
+
+    /**
+     * @param name The name of the database, a name.pag and a name.dir file will be created.
+     * @param mode The mode to open the database in, either "r" or "rw"
+     * @param options How to open the database, see SdbmOptions.
+     */
+    public Sdbm(File baseDir, String name, String mode, SdbmOptions options)
+	throws IOException {
 	this.mode = mode;
+	this.options = (SdbmOptions) options.clone();
+	this.charset = options.getCharset();
+	this.fingerprints = options.getFingerprints();
+	if (options.getMetrics()) {
+	    metrics = new Metrics(this);
+	}
 
 	this.dirFile = new File(baseDir,name+DIREXT);
 	this.pagFile = new File(baseDir,name+PAGEXT);
+	this.metaFile = new File(baseDir,name+METAEXT);
+	this.ovfFile = new File(baseDir,name+OVFEXT);
+	this.blmFile = new File(baseDir,name+BLMEXT);
+	this.walFile = new File(baseDir,name+WALEXT);
+	this.idxFile = new File(baseDir,name+IDXEXT);
+	this.swapFile = new File(baseDir,name+SWAPEXT);
+
+	// a compact() cut short after it committed to its copy.
+	if (swapFile.exists()) {
+	    finishSwap();
+	}
+
+	// a log left behind is replayed whether or not we keep one.
+	if (options.getWriteAheadLog() != SdbmOptions.WAL_OFF ||
+	    walFile.length() > 0) {
+	    wal = new WriteAheadLog(walFile,new File[] {dirFile,pagFile,ovfFile},
+				    mode,options);
+	    if (options.getWriteAheadLog() == SdbmOptions.WAL_OFF &&
+		mode.equals("rw")) {
+		wal.close();
+		walFile.delete();
+		wal = null;
+	    }
+	}
 
-	dirRaf = new RandomAccessFile(dirFile,mode);
-	pagRaf = new RandomAccessFile(pagFile,mode);
-	dirbuf = new byte[DBLKSIZ];
+	try {
+	    open();
+	} catch (IOException | RuntimeException e) {
+	    abandon(e);
+	    throw e;
+	}
+    }
 
-	// need the dirfile size to establish max bit number.
-	// zero size: either a fresh database, or one with a single,
-	// unsplit data page: dirpage is all zeros.
-	dirbno = dirRaf.length() == 0 ? 0 : -1;
-	maxbno = (int) dirRaf.length() * BITSINBYTE;
+    /**
+     * The rest of the constructor: reads the header, opens the files
+     * and counts the pairs, builds the Bloom filter and the sorted
+     * index if they weren't saved.
+     */
+    private void open() throws IOException {
+	meta = Meta.read(metaFile);
+	if (meta != null) {
+	    hashFunction = HashFunction.forId(meta.hashId);
+	    if (meta.pageSize < PBLKSIZ || meta.pageSize > Page.MAXPAGESIZE ||
+		(meta.pageSize & (meta.pageSize - 1)) != 0 || hashFunction == null) {
+		throw new SdbmException("Unsupported page size "+meta.pageSize+
+					" or hash function "+meta.hashId);
+	    }
+	    pageSize = meta.pageSize;
+	} else if (pagFile.length() > 0) {
+	    // files from before the header, which only had these.
+	    pageSize = PBLKSIZ;
+	    hashFunction = HashFunction.SDBM;
+	} else {
+	    pageSize = options.getPageSize();
+	    hashFunction = options.getHashFunction();
+	}
+	pairMax = pairMax(pageSize);
+
+	openFiles();
 	//System.out.println("MAXBNO:"+maxbno);
 	//System.out.println("BITSINBYTE:"+BITSINBYTE);
-	//System.out.println("size:"+dirRaf.length());
+	//System.out.println("size:"+dirf.length());
+
+	if (meta != null && meta.clean && meta.pageCount == pageCount()) {
+	    elementCount = (int) meta.elementCount;
+	} else {
+	    // no header, or the last writer didn't close it properly.
+	    PageScanner scanner = new PageScanner(this,0,-1);
+	    Page p = new Page(pageSize);
+	    while (scanner.hasNext()) {
+		nextPage(scanner,p);
+		elementCount += p.size();
+	    }
+	    if (meta == null) {
+		// every page was valid at this size, so it is the one.
+		meta = new Meta();
+		meta.pageSize = pageSize;
+		meta.hashId = hashFunction.getId();
+		if (mode.equals("rw")) {
+		    meta.write(metaFile);
+		}
+	    }
+	    meta.clean = false;
+	}
 
-	for (Enumeration en = pages();en.hasMoreElements();) {
-	    Page p = (Page) en.nextElement();
-	    if (page == null) {
-		page = p;
+	// the .blm and .idx files are only current after a clean close.
+	if (options.getBloomFpp() > 0 && meta.clean) {
+	    bloom = BloomFilter.read(blmFile,elementCount,meta.pageCount);
+	}
+	if (options.getSortedIndex() && meta.clean) {
+	    index = KeyIndex.read(idxFile,elementCount,meta.pageCount,
+				  options.getSortedIndexLimit());
+	}
+	boolean newBloom = options.getBloomFpp() > 0 && bloom == null;
+	boolean newIndex = options.getSortedIndex() && index == null;
+	if (newBloom) {
+	    if (mode.equals("rw")) {
+		blmFile.delete();
+	    }
+	    bloom = newBloom(elementCount);
+	}
+	if (newIndex) {
+	    if (mode.equals("rw")) {
+		idxFile.delete();
+	    }
+	    index = newIndex();
+	}
+	if (newBloom || newIndex) {
+	    PageScanner scanner = new PageScanner(this,0,-1);
+	    Page p = new Page(pageSize);
+	    while (scanner.hasNext()) {
+		nextPage(scanner,p);
+		for (int i=0;i<p.size();i++) {
+		    byte[] key = p.getKeyAt(i);
+		    if (newBloom) {
+			bloom.add(key,0,key.length);
+		    }
+		    if (newIndex && index != null) {
+			try {
+			    index.load(key);
+			} catch (IOException e) {
+			    dropIndex(e);
+			}
+		    }
+		}
+	    }
+	    if (newIndex && index != null) {
+		try {
+		    index.finishLoad();
+		} catch (IOException e) {
+		    dropIndex(e);
+		}
 	    }
-	    elementCount += p.size();
 	}
 	//System.out.println("Elements:"+elementCount);
     }
 
+    /**
+     * Closes what a constructor that failed with e got to open, so that
+     * no file is left open behind it.
+     */
+    private void abandon(Throwable e) {
+	try {
+	    if (dirf != null) {
+		dirf.close();
+	    }
+	} catch (IOException c) {
+	    e.addSuppressed(c);
+	}
+	try {
+	    if (pagf != null) {
+		pagf.close();
+	    }
+	} catch (IOException c) {
+	    e.addSuppressed(c);
+	}
+	try {
+	    if (ovf != null) {
+		ovf.close();
+	    }
+	} catch (IOException c) {
+	    e.addSuppressed(c);
+	}
+	try {
+	    if (wal != null) {
+		wal.close();
+	    }
+	} catch (IOException c) {
+	    e.addSuppressed(c);
+	}
+	if (index != null) {
+	    index.close();
+	}
+    }
+
+    /**
+     * @return an empty sorted index, kept in name.idx unless read only.
+     */
+    private KeyIndex newIndex() {
+	return new KeyIndex(mode.equals("rw") ? idxFile : null,
+			    options.getSortedIndexLimit());
+    }
+
+    /**
+     * Gives up on the sorted index after it failed, so that writes
+     * don't fail because of it; range() throws from now on.
+     */
+    private void dropIndex(IOException e) {
+	index.close();
+	index = null;
+	indexError = e;
+	if (mode.equals("rw")) {
+	    idxFile.delete();
+	}
+    }
+
+    /**
+     * Tells the sorted index about a key added or removed.
+     */
+    private void indexed(byte[] key, int off, int len, boolean add) {
+	try {
+	    if (add) {
+		index.add(key,off,len);
+	    } else {
+		index.remove(key,off,len);
+	    }
+	} catch (IOException e) {
+	    dropIndex(e);
+	}
+    }
+
+    /**
+     * scanner.next() for the constructor, which fails on a page that
+     * doesn't parse: the page size is wrong or the file is damaged.
+     */
+    private void nextPage(PageScanner scanner, Page p) throws IOException {
+	scanner.next(p);
+	if (!p.isValid()) {
+	    throw new SdbmException("Corrupt page "+p.bno);
+	}
+    }
+
     
     private static final void checkKey(String key) {
 	if (key == null) {
@@ -85,12 +339,142 @@ public class Sdbm {
 	}
     }
 
-    private static final int OFF_PAG(int off) {
-	return off * PBLKSIZ;
+    private static final void checkKey(byte[] key, int off, int len) {
+	if (key == null) {
+	    throw new NullPointerException();
+	} else if (off < 0 || len < 0 || off + len > key.length) {
+	    throw new IndexOutOfBoundsException();
+	} else if (len <= 0) {
+	    throw new IllegalArgumentException("key too small: "+len);
+	}
+    }
+
+    private static final byte[] toBytes(ByteBuffer b) {
+	byte[] a = new byte[b.remaining()];
+	b.duplicate().get(a);
+	return a;
+    }
+
+    /**
+     * @return the biggest pair that is kept in a page of pageSize bytes,
+     * the value of a bigger one goes to the overflow file.
+     */
+    static int pairMax(int pageSize) {
+	return pageSize - (PBLKSIZ - PAIRMAX);
+    }
+
+    private final long OFF_PAG(int off) {
+	return (long) off * pageSize;
+    }
+
+    private static final long OFF_DIR(int off) {
+	return (long) off * DBLKSIZ;
     }
 
-    private static final int OFF_DIR(int off) {
-	return off * DBLKSIZ;
+    /**
+     * (re)open the dir and pag files with the configured io engine
+     * and reset the directory state to match them.
+     */
+    private void openFiles() throws IOException {
+	if (options.getIoEngine() == SdbmOptions.IO_MAPPED) {
+	    dirf = new MappedBlockFile(dirFile,mode);
+	    pagf = new MappedBlockFile(pagFile,mode);
+	} else {
+	    dirf = new RandomAccessBlockFile(dirFile,mode);
+	    pagf = new RandomAccessBlockFile(pagFile,mode);
+	}
+	if (wal != null) {
+	    wal.release();
+	    dirf = wal.wrap(DIR,dirf,DBLKSIZ);
+	    pagf = wal.wrap(PAG,pagf,pageSize);
+	}
+	ovf = new OverflowFile(ovfFile,mode,pageSize,wal);
+	if (slabs != null) {
+	    // the files may have been replaced.
+	    slabs.clear();
+	} else if (options.getOffHeapCacheSize() > 0) {
+	    slabs = new SlabStore(pageSize,Math.max(pageSize,
+						    options.getOffHeapCacheSize()));
+	}
+	BlockCache cache = new BlockCache(pagf,pageSize,
+					  options.getPageCacheSize(),
+					  options.getWriteBack(),true,slabs);
+	if (metrics != null && pageCache != null) {
+	    // keeps the counts from going back.
+	    synchronized (metrics) {
+		metrics.retire(pageCache.getStats());
+		pageCache = cache;
+	    }
+	} else {
+	    pageCache = cache;
+	}
+	dirCache = new BlockCache(dirf,DBLKSIZ,options.getDirCacheSize(),
+				  options.getWriteBack(),false);
+
+	// need the dirfile size to establish max bit number.
+	// zero size: either a fresh database, or one with a single,
+	// unsplit data page: dirpage is all zeros.
+	maxbno = (int) dirf.length() * BITSINBYTE;
+
+	// lookups walk the directory in memory, only setdbit() writes
+	// through the cache.
+	int len = (int) dirf.length();
+	byte[] b = new byte[(len + 7) & ~7];
+	dirf.read(0,b,0,len);
+	dirBits = new long[b.length / 8];
+	ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(dirBits);
+    }
+
+    private long pageCount() throws IOException {
+	return (pagf.length() + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Called with the write lock before each modification, marks the
+     * header unclean before the files change.
+     */
+    private void modified() throws IOException {
+	modCount++;
+	if (meta.clean) {
+	    meta.clean = false;
+	    meta.write(metaFile);
+	    // out of date from now on, close() writes them again.  The
+	    // index keeps its run in name.idx, close() rewrites it too.
+	    blmFile.delete();
+	    if (index == null) {
+		idxFile.delete();
+	    }
+	}
+    }
+
+    /**
+     * @return an empty Bloom filter as configured, big enough for at
+     * least count keys.
+     */
+    private BloomFilter newBloom(long count) {
+	return new BloomFilter(Math.max(options.getBloomExpectedKeys(),count),
+			       options.getBloomFpp());
+    }
+
+    /**
+     * @return true if the Bloom filter rules the key out.  The caller
+     * must hold either lock.
+     */
+    private boolean ruledOut(byte[] key, int off, int len) {
+	return bloom != null && !bloom.mightContain(key,off,len);
+    }
+
+    /**
+     * Counts a lookup that got past the Bloom filter for nothing.
+     */
+    private void missed() {
+	if (bloom != null) {
+	    bloom.falsePositive();
+	}
+    }
+
+    private void writePage(Page p) throws IOException {
+	pageCache.put(p);
     }
 
     private static final int masks[] = {
@@ -107,32 +491,433 @@ public class Sdbm {
     /**
      * Close the database.
      */
-    public synchronized void close() throws IOException {
-	dirRaf.close();
-	pagRaf.close();
+    public void close() throws IOException {
+	lock.writeLock().lock();
+	try {
+	    flush();
+	    if (wal != null) {
+		wal.checkpoint();
+	    }
+	    if (mode.equals("rw")) {
+		meta.elementCount = elementCount;
+		meta.pageCount = pageCount();
+		if (bloom != null && !blmFile.exists()) {
+		    bloom.write(blmFile,meta.elementCount,meta.pageCount);
+		}
+		if (index != null) {
+		    try {
+			index.save(meta.elementCount,meta.pageCount);
+		    } catch (IOException e) {
+			dropIndex(e);
+		    }
+		}
+		meta.clean = true;
+		meta.write(metaFile);
+	    }
+	} finally {
+	    try {
+		dirf.close();
+		pagf.close();
+		ovf.close();
+		if (wal != null) {
+		    wal.close();
+		}
+		if (index != null) {
+		    index.close();
+		}
+		// the direct buffers go with the next gc.
+		slabs = null;
+	    } finally {
+		lock.writeLock().unlock();
+		if (mbeanName != null) {
+		    try {
+			java.lang.management.ManagementFactory.
+			    getPlatformMBeanServer().unregisterMBean(mbeanName);
+		    } catch (javax.management.JMException e) {
+			// already gone.
+		    }
+		    mbeanName = null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write out any modified blocks held in the caches, and with a
+     * write-ahead log force it and write out the blocks it covers.
+     * Only does anything if the database was opened with write-back
+     * caching or a WAL_BATCH log.
+     */
+    public void flush() throws IOException {
+	flushCaches();
+	if (wal != null) {
+	    lock.writeLock().lock();
+	    try {
+		wal.sync();
+	    } finally {
+		lock.writeLock().unlock();
+	    }
+	}
+    }
+
+    /**
+     * Writes out the modified blocks of the caches, which with a
+     * write-ahead log never has any to write outside of a modification.
+     */
+    private void flushCaches() throws IOException {
+	// keeps writers out, the caches take care of concurrent readers.
+	lock.readLock().lock();
+	try {
+	    // pages before the directory bits that point at them.
+	    pageCache.flush();
+	    dirCache.flush();
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Writes everything to the database files and forces them, then
+     * empties the write-ahead log.  This happens by itself when the log
+     * reaches SdbmOptions.getWalCheckpointBytes() and on close().
+     */
+    public void checkpoint() throws IOException {
+	lock.writeLock().lock();
+	try {
+	    flushCaches();
+	    if (wal != null) {
+		wal.checkpoint();
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Ends a modification: with a write-ahead log, logs every block it
+     * changed as one record.  Call it holding the write lock.
+     */
+    private void commit() throws IOException {
+	if (wal != null) {
+	    pageCache.flush();
+	    dirCache.flush();
+	    wal.commit();
+	}
+    }
+
+    /**
+     * @return the size of the .pag blocks, fixed when the database was
+     * created.
+     */
+    public int getPageSize() {
+	return pageSize;
+    }
+
+    /**
+     * @return the hash function the database was created with.
+     */
+    public HashFunction getHashFunction() {
+	return hashFunction;
+    }
+
+    /**
+     * @return hit/miss counters of the .pag block cache.
+     */
+    public CacheStats getPageCacheStats() {
+	return pageCache.getStats();
+    }
+
+    /**
+     * @return hit/miss counters of the pages kept off the heap, writes
+     * being the pages put there, or null if there are none.
+     */
+    public CacheStats getOffHeapCacheStats() {
+	SlabStore s = slabs;
+	return s == null ? null : s.getStats();
+    }
+
+    /**
+     * @return hit/miss counters of the .dir block cache, which only
+     * splits use now that lookups go to the directory in memory.
+     */
+    public CacheStats getDirCacheStats() {
+	return dirCache.getStats();
+    }
+
+    /**
+     * @return the size and hit counters of the Bloom filter, null if
+     * the database was opened without one.
+     */
+    public BloomStats getBloomStats() {
+	lock.readLock().lock();
+	try {
+	    return bloom == null ? null : bloom.getStats();
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * @return a snapshot of the metrics, null if the database was
+     * opened without them.
+     */
+    public SdbmMetrics getMetrics() {
+	return metrics == null ? null : new SdbmMetrics(metrics);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as
+     * org.solinger.sdbm:type=Sdbm,name="the .pag file's path".  close()
+     * unregisters them.
+     *
+     * @return the name registered.
+     * @throws IllegalStateException if the database was opened without
+     * metrics.
+     */
+    public javax.management.ObjectName registerMBean()
+	throws javax.management.JMException {
+	if (metrics == null) {
+	    throw new IllegalStateException("metrics are off");
+	}
+	javax.management.ObjectName name = new javax.management.ObjectName
+	    ("org.solinger.sdbm:type=Sdbm,name="+
+	     javax.management.ObjectName.quote(pagFile.getAbsolutePath()));
+	java.lang.management.ManagementFactory.getPlatformMBeanServer().
+	    registerMBean(metrics,name);
+	mbeanName = name;
+	return name;
     }
 
     /**
      * Get the value associated with the key, returns null if that
      * value doesn't exist.
      */
-    public synchronized String get(String key) throws IOException {
+    public String get(String key) throws IOException {
 	checkKey(key);
 
-	byte[] keyBytes = key.getBytes();
+	byte[] b = get(key.getBytes(charset));
+	if (b == null) {
+	    return null;
+	}
+	return new String(b,charset);
+    }
+
+    /**
+     * Get the value associated with the key, returns null if that
+     * value doesn't exist.
+     */
+    public byte[] get(byte[] key) throws IOException {
+	return get(key,0,key.length);
+    }
+
+    /**
+     * Get the value associated with the remaining bytes of key, returns
+     * null if that value doesn't exist.  The position of key is left
+     * untouched.
+     */
+    public byte[] get(ByteBuffer key) throws IOException {
+	if (key.hasArray()) {
+	    return get(key.array(),key.arrayOffset()+key.position(),
+		       key.remaining());
+	}
+	return get(toBytes(key));
+    }
+
+    /**
+     * Get the value associated with the key in key[off..off+len),
+     * returns null if that value doesn't exist.
+     */
+    public byte[] get(byte[] key, int off, int len) throws IOException {
+	checkKey(key,off,len);
 
+	long start = metrics != null ? System.nanoTime() : 0;
+	int hash = hashFunction.hash(key,off,len);
+	lock.readLock().lock();
+	try {
+	    return getLocked(hash,key,off,len);
+	} finally {
+	    lock.readLock().unlock();
+	    if (metrics != null) {
+		metrics.get.since(start);
+	    }
+	}
+    }
+
+    private byte[] getLocked(int hash, byte[] key, int off, int len)
+	throws IOException {
 	//System.out.println(key);
-	page = getPage(Hash.hash(keyBytes));
-	//System.out.println(page.bno);
-	//page.print();
-	if (page == null) {
+	if (ruledOut(key,off,len)) {
 	    return null;
 	}
-	byte[] b = page.get(keyBytes);
- 	if (b == null) {
-	    return null;
+	Page page = getPage(hash);
+	try {
+	    //System.out.println(page.bno);
+	    //page.print();
+	    int i = find(page,hash,key,off,len);
+	    if (i == -1) {
+		missed();
+		return null;
+	    }
+	    return valueAt(page,i/2);
+	} finally {
+	    pageCache.release(page);
+	}
+    }
+
+    /**
+     * getLocked() without the Bloom filter, so that lookups of our own
+     * don't count as queries in its statistics.
+     */
+    private byte[] valueOf(int hash, byte[] key, int off, int len)
+	throws IOException {
+	Page page = getPage(hash);
+	try {
+	    int i = find(page,hash,key,off,len);
+	    return i == -1 ? null : valueAt(page,i/2);
+	} finally {
+	    pageCache.release(page);
+	}
+    }
+
+    /**
+     * Looks many keys up at once.  The keys are hashed up front and
+     * sorted by the page they live in, so that each page is looked at
+     * once, and the pages that aren't cached are read in file order,
+     * consecutive ones together.  For more than a few keys this beats
+     * a get() each.
+     *
+     * @return the values in the order of the keys, null for the
+     * missing ones.
+     */
+    public List<byte[]> getAll(Collection<byte[]> keys) throws IOException {
+	byte[][] k = keys.toArray(new byte[keys.size()][]);
+	int[] hashes = new int[k.length];
+	for (int i=0;i<k.length;i++) {
+	    checkKey(k[i],0,k[i].length);
+	    hashes[i] = hashFunction.hash(k[i],0,k[i].length);
+	}
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	lock.readLock().lock();
+	try {
+	    return Arrays.asList(getAllLocked(k,hashes,k.length));
+	} finally {
+	    lock.readLock().unlock();
+	    if (metrics != null) {
+		metrics.getAll.since(start);
+	    }
+	}
+    }
+
+    /**
+     * getAll() of k[0..count) whose hashes are given, holding the read
+     * lock.
+     *
+     * @return the values by key, null for the missing ones.
+     */
+    private byte[][] getAllLocked(byte[][] k, int[] hashes, int count)
+	throws IOException {
+	byte[][] values = new byte[count][];
+	// the page in the high half, the index of the key in the low.
+	long[] order = new long[count];
+	int n = 0;
+	for (int i=0;i<count;i++) {
+	    if (!ruledOut(k[i],0,k[i].length)) {
+		int bno = hashes[i] & masks[depth(dirBit(hashes[i]))];
+		order[n++] = ((bno & 0xffffffffL) << 32) | i;
+	    }
+	}
+	Arrays.sort(order,0,n);
+
+	int[] bnos = new int[n];
+	int m = 0;
+	for (int j=0;j<n;j++) {
+	    int bno = (int) (order[j] >>> 32);
+	    if (m == 0 || bnos[m-1] != bno) {
+		bnos[m++] = bno;
+	    }
+	}
+	Page[] pages = pageCache.getAll(bnos,m);
+
+	try {
+	    for (int j=0,p=0;j<n;j++) {
+		if (pages[p].bno != (int) (order[j] >>> 32)) {
+		    p++;
+		}
+		int i = (int) order[j];
+		int v = find(pages[p],hashes[i],k[i],0,k[i].length);
+		if (v == -1) {
+		    missed();
+		} else {
+		    values[i] = valueAt(pages[p],v/2);
+		}
+	    }
+	} finally {
+	    for (int p=0;p<m;p++) {
+		pageCache.release(pages[p]);
+	    }
+	}
+	return values;
+    }
+
+    /**
+     * @return the index of the key in page, see Page.indexOfValue().
+     */
+    private int find(Page page, int hash, byte[] key, int off, int len) {
+	return fingerprints ? page.indexOfValue(key,off,len,hash,hashFunction)
+	    : page.indexOfValue(key,off,len);
+    }
+
+    /**
+     * @return the nth value of page, from the overflow file if it is
+     * kept there.
+     */
+    private byte[] valueAt(Page page, int n) throws IOException {
+	byte[] val = page.getElementAt(n);
+	return page.isOverflow(n) ? ovf.read(val) : val;
+    }
+
+    /**
+     * Copies the value associated with the key in key[off..off+len) into
+     * out, starting at its position.  When the page is cached this
+     * allocates nothing, which makes it the lookup of choice for hot
+     * paths.  If out has less than the value's length remaining nothing
+     * is copied, so the caller can compare the result with remaining()
+     * and retry with a larger buffer.
+     *
+     * @return the length of the value, or -1 if it doesn't exist.
+     */
+    public int get(byte[] key, int off, int len, ByteBuffer out)
+	throws IOException {
+	checkKey(key,off,len);
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	int hash = hashFunction.hash(key,off,len);
+	lock.readLock().lock();
+	try {
+	    if (ruledOut(key,off,len)) {
+		return -1;
+	    }
+	    Page page = getPage(hash);
+	    try {
+		int i = find(page,hash,key,off,len);
+		if (i == -1) {
+		    missed();
+		    return -1;
+		}
+		if (page.isOverflow(i/2)) {
+		    return ovf.read(page.getElementAt(i/2),out);
+		}
+		return page.getElementAt(i/2,out);
+	    } finally {
+		pageCache.release(page);
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	    if (metrics != null) {
+		metrics.get.since(start);
+	    }
 	}
-	return new String(b);
     }
 
     /**
@@ -140,231 +925,676 @@ public class Sdbm {
      *
      * @return true if the dbm contains the key
      */
-    public synchronized boolean containsKey(String key) throws IOException {
+    public boolean containsKey(String key) throws IOException {
 	checkKey(key);
 
-	byte[] keyBytes = key.getBytes();
-	page = getPage(Hash.hash(keyBytes));
+	return containsKey(key.getBytes(charset));
+    }
+
+    public boolean containsKey(byte[] key) throws IOException {
+	return containsKey(key,0,key.length);
+    }
 
-	if (page == null) {
-	    return false;
+    public boolean containsKey(ByteBuffer key) throws IOException {
+	if (key.hasArray()) {
+	    return containsKey(key.array(),key.arrayOffset()+key.position(),
+			       key.remaining());
 	}
-	return page.containsKey(keyBytes);
+	return containsKey(toBytes(key));
     }
 
+    /**
+     * @return true if the dbm contains the key in key[off..off+len)
+     */
+    public boolean containsKey(byte[] key, int off, int len) 
+	throws IOException {
+	checkKey(key,off,len);
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	int hash = hashFunction.hash(key,off,len);
+	lock.readLock().lock();
+	try {
+	    if (ruledOut(key,off,len)) {
+		return false;
+	    }
+	    Page page = getPage(hash);
+	    try {
+		if (find(page,hash,key,off,len) == -1) {
+		    missed();
+		    return false;
+		}
+		return true;
+	    } finally {
+		pageCache.release(page);
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	    if (metrics != null) {
+		metrics.get.since(start);
+	    }
+	}
+    }
 
     /**
      * Clear the database of all entries.
      */
-    public synchronized void clear() throws IOException {
+    public void clear() throws IOException {
 	if (!mode.equals("rw")) {
 	    throw new IOException("This file is opened Read only");
 	}
 
-	dirRaf.close();
-	pagRaf.close();
+	lock.writeLock().lock();
+	try {
+	    checkpoint();
+	    modified();
+	    dirf.close();
+	    pagf.close();
+
+	    try {
+		if (!dirFile.delete()) {
+		    throw new IOException("Unable to delete :"+dirFile);
+
+		}
+	    } finally {
+		if (!pagFile.delete()) {
+		    throw new IOException("Unable to delete :"+pagFile);
+		}
+	    }
+	    ovf.close();
+	    if (ovfFile.exists() && !ovfFile.delete()) {
+		throw new IOException("Unable to delete :"+ovfFile);
+	    }
+
+	    openFiles();
+
+	    elementCount = 0;
+	    if (bloom != null) {
+		BloomFilter bf = newBloom(0);
+		bf.keepStats(bloom);
+		bloom = bf;
+	    }
+	    if (index != null) {
+		index.clear();
+	    } else if (options.getSortedIndex()) {
+		// an empty one can't fail to be right.
+		index = newIndex();
+		indexError = null;
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Cleanes the dbm by rewriting it into a fresh copy, see compact().
+     */
+    public void clean() throws IOException {
+	compact();
+    }
 
+    /**
+     * Rewrites the database into fresh files with every page as full
+     * as it goes, which shrinks it and speeds it up if it has become
+     * sparse due to a large number of removals.  The copy is written
+     * with a BulkLoader while readers carry on with the old files, only
+     * writers wait.  The new files are then forced to disk and moved
+     * over the old ones, see finishSwap().  If the database was modified in
+     * between, which can only happen in the gap between the locks, the
+     * copy is redone holding the write lock.  A Bloom filter is built
+     * afresh along with the copy, sized for the keys there are.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public long compact() throws IOException {
+	if (!mode.equals("rw")) {
+	    throw new IOException("This file is opened Read only");
+	}
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	File dir = dirFile.getAbsoluteFile().getParentFile();
+	// reserves a unique name for the copy.
+	File tmp = File.createTempFile(pagFile.getName()+".",".tmp",dir);
+	File tmpDir = new File(dir,tmp.getName()+DIREXT);
+	File tmpPag = new File(dir,tmp.getName()+PAGEXT);
+	File tmpOvf = new File(dir,tmp.getName()+OVFEXT);
 	try {
-	    if (!dirFile.delete()) {
-		throw new IOException("Unable to delete :"+dirFile);
+	    int count;
+	    int mods;
+	    BloomFilter bf = null;
+	    lock.readLock().lock();
+	    try {
+		mods = modCount;
+		if (bloom != null) {
+		    bf = newBloom(elementCount);
+		}
+		count = copyTo(dir,tmp.getName(),bf);
+	    } finally {
+		lock.readLock().unlock();
+	    }
 
+	    lock.writeLock().lock();
+	    try {
+		if (modCount != mods) {
+		    if (bloom != null) {
+			bf = newBloom(elementCount);
+		    }
+		    count = copyTo(dir,tmp.getName(),bf);
+		}
+		checkpoint();
+		long before = dirf.length() + pagf.length() + ovf.length();
+		long after = tmpDir.length() + tmpPag.length() + tmpOvf.length();
+
+		modified();
+		dirf.close();
+		pagf.close();
+		ovf.close();
+		try {
+		    force(tmpDir);
+		    force(tmpPag);
+		    if (tmpOvf.exists()) {
+			force(tmpOvf);
+		    }
+		    writeSwap(tmp.getName(),tmpOvf.exists());
+		    finishSwap();
+		} finally {
+		    openFiles();
+		}
+		elementCount = count;
+		if (bf != null) {
+		    bf.keepStats(bloom);
+		    bloom = bf;
+		}
+		compactedAt = modCount;
+		return before - after;
+	    } finally {
+		lock.writeLock().unlock();
 	    }
 	} finally {
-	    if (!pagFile.delete()) {
-		throw new IOException("Unable to delete :"+pagFile);
+	    tmp.delete();
+	    if (!swapFile.exists()) {
+		// otherwise the next open moves them into place.
+		tmpDir.delete();
+		tmpPag.delete();
+		tmpOvf.delete();
+	    }
+	    new File(dir,tmp.getName()+METAEXT).delete();
+	    if (metrics != null) {
+		metrics.compact.since(start);
 	    }
 	}
-	
-	dirRaf = new RandomAccessFile(dirFile,mode);
-	pagRaf = new RandomAccessFile(pagFile,mode);
-	// zero the dirbuf
-	dirbuf = new byte[DBLKSIZ];
+    }
+
+    private static void force(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f,"rw");
+	try {
+	    raf.getChannel().force(true);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Records that the copy named name is to replace the database,
+     * with an overflow file or not.  Once name.swap is there the copy
+     * is committed to: it is written to name.swap.tmp and renamed, so
+     * it is either complete or missing.
+     */
+    private void writeSwap(String name, boolean overflow) throws IOException {
+	File tmp = new File(swapFile.getPath()+".tmp");
+	FileOutputStream fos = new FileOutputStream(tmp);
+	DataOutputStream out = new DataOutputStream(fos);
+	try {
+	    out.writeUTF(name);
+	    out.writeBoolean(overflow);
+	    out.flush();
+	    fos.getChannel().force(true);
+	} finally {
+	    out.close();
+	}
+	java.nio.file.Files.move(tmp.toPath(),swapFile.toPath(),
+				 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
 
-	curbit = 0;
-	hmask = 0;	
-	page = null;  
+    /**
+     * Moves the copy recorded in name.swap over the database files, one
+     * atomic rename each, and then drops name.swap.  The set of files
+     * is not replaced atomically, but the moves are redone by the next
+     * open if a crash cuts them short, so the new .pag never meets the
+     * old .dir for long.  Every step can be done twice.
+     */
+    private void finishSwap() throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(swapFile));
+	String name;
+	boolean overflow;
+	try {
+	    name = in.readUTF();
+	    overflow = in.readBoolean();
+	} finally {
+	    in.close();
+	}
+	File dir = swapFile.getAbsoluteFile().getParentFile();
+	File tmpDir = new File(dir,name+DIREXT);
+	File tmpPag = new File(dir,name+PAGEXT);
+	File tmpOvf = new File(dir,name+OVFEXT);
+	if (tmpPag.exists()) {
+	    java.nio.file.Files.move
+		(tmpPag.toPath(),pagFile.toPath(),
+		 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	if (!overflow) {
+	    ovfFile.delete();
+	} else if (tmpOvf.exists()) {
+	    java.nio.file.Files.move
+		(tmpOvf.toPath(),ovfFile.toPath(),
+		 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	if (tmpDir.exists()) {
+	    java.nio.file.Files.move
+		(tmpDir.toPath(),dirFile.toPath(),
+		 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	if (!swapFile.delete()) {
+	    throw new IOException("Unable to delete :"+swapFile);
+	}
+    }
+
+    /**
+     * Bulk loads every pair into a new database, and the keys into bf
+     * unless it is null.  Call it holding either lock.
+     *
+     * @return the number of pairs copied.
+     */
+    private int copyTo(File dir, String name, BloomFilter bf)
+	throws IOException {
+	// the copy is read from the file.
+	flushCaches();
+
+	SdbmOptions opts = ((SdbmOptions) options.clone()).
+	    setPageSize(pageSize).setHashFunction(hashFunction);
+	BulkLoader loader = new BulkLoader(dir,name,opts);
+	Page p = new Page(pageSize);
+	PageScanner scanner = new PageScanner(this,0,-1);
+	try {
+	    while (scanner.hasNext()) {
+		scanner.next(p);
+		if (!p.isValid()) {
+		    throw new SdbmException("Corrupt page "+p.bno);
+		}
+		for (int i=0;i<p.size();i++) {
+		    byte[] key = p.getKeyAt(i);
+		    loader.add(key,valueAt(p,i));
+		    if (bf != null) {
+			bf.add(key,0,key.length);
+		    }
+		}
+	    }
+	} finally {
+	    scanner.close();
+	}
+	return loader.build();
+    }
+
+    /**
+     * removes the value associated with the key
+     * @returns the removed value, null if it didn't exist.
+     */
+    public String remove(String key) throws IOException{
+	checkKey(key);
+
+	byte[] removeBytes = remove(key.getBytes(charset));
+	String val = null;
+	if (removeBytes != null) {
+	    val = new String(removeBytes,charset);
+	}
+	return val;
+    }
+
+    public byte[] remove(byte[] key) throws IOException {
+	return remove(key,0,key.length);
+    }
+
+    public byte[] remove(ByteBuffer key) throws IOException {
+	if (key.hasArray()) {
+	    return remove(key.array(),key.arrayOffset()+key.position(),
+			  key.remaining());
+	}
+	return remove(toBytes(key));
+    }
+
+    /**
+     * removes the value associated with the key in key[off..off+len).
+     * @returns the removed value, null if it didn't exist.
+     */
+    public byte[] remove(byte[] key, int off, int len) throws IOException {
+	checkKey(key,off,len);
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	int hash = hashFunction.hash(key,off,len);
+	lock.writeLock().lock();
+	try {
+	    try {
+		return removeLocked(hash,key,off,len);
+	    } finally {
+		commit();
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	    if (metrics != null) {
+		metrics.remove.since(start);
+	    }
+	}
+    }
+
+    private byte[] removeLocked(int hash, byte[] key, int off, int len)
+	throws IOException {
+	if (ruledOut(key,off,len)) {
+	    return null;
+	}
+	Page page = getPage(hash);
+	try {
+	    int i = find(page,hash,key,off,len);
+	    if (i == -1) {
+		missed();
+		return null;
+	    }
+	    modified();
+	    boolean overflow = page.isOverflow(i/2);
+	    byte[] removeBytes = page.remove(key,off,len);
+	    elementCount--;
+	    if (index != null) {
+		indexed(key,off,len,false);
+	    }
+	    // update the page file
+	    writePage(page);
+
+	    if (overflow) {
+		byte[] ref = removeBytes;
+		removeBytes = ovf.read(ref);
+		ovf.free(ref);
+	    }
+	    return removeBytes;
+	} finally {
+	    pageCache.release(page);
+	}
+    }
+
+    /**
+     * puts the value into the database using key as its key.
+     * @returns the old value of the key.
+     */
+    public String put(String key, String value) 
+	throws IOException, SdbmException {
+
+	checkKey(key);
+
+	byte[] valBytes = put(key.getBytes(charset),value.getBytes(charset));
+	String val = null;
+	if (valBytes != null) {
+	    val = new String(valBytes,charset);
+	}
+	return val;    
+    }
+
+    /**
+     * puts the value into the database using key as its key.
+     * @returns the old value of the key.
+     */
+    public byte[] put(byte[] key, byte[] value) 
+	throws IOException, SdbmException {
+	return put(key,0,key.length,value,0,value.length);
+    }
 
-	// need the dirfile size to establish max bit number.
-	// zero size: either a fresh database, or one with a single,
-	// unsplit data page: dirpage is all zeros.
-	dirbno = dirRaf.length() == 0 ? 0 : -1;
-	maxbno = (int) dirRaf.length() * BITSINBYTE;
-	elementCount = 0;
+    /**
+     * puts the remaining bytes of value into the database using the
+     * remaining bytes of key as its key.  Neither position is changed.
+     * @returns the old value of the key.
+     */
+    public byte[] put(ByteBuffer key, ByteBuffer value) 
+	throws IOException, SdbmException {
+	byte[] k = key.hasArray() ? key.array() : toBytes(key);
+	int koff = key.hasArray() ? key.arrayOffset()+key.position() : 0;
+	byte[] v = value.hasArray() ? value.array() : toBytes(value);
+	int voff = value.hasArray() ? value.arrayOffset()+value.position() : 0;
+	return put(k,koff,key.remaining(),v,voff,value.remaining());
     }
 
     /**
-     * Cleanes the dbm by reinserting the keys/values into a fresh copy.
-     * This can reduce the size of the dbm and speed up many operations if
-     * the database has become sparse due to a large number of removals.
+     * puts val[voff..voff+vlen) into the database using
+     * key[koff..koff+klen) as its key.
+     * @returns the old value of the key.
      */
-    public synchronized void clean() throws IOException {
-	if (!mode.equals("rw")) {
-	    throw new IOException("This file is opened Read only");
-	}
+    public byte[] put(byte[] key, int koff, int klen,
+		      byte[] val, int voff, int vlen) 
+	throws IOException, SdbmException {
 
-	if (rand == null) {
-	    rand = new Random();
+	checkKey(key,koff,klen);
+	if (voff < 0 || vlen < 0 || voff + vlen > val.length) {
+	    throw new IndexOutOfBoundsException();
 	}
 
-	// FIX use createTempFile instead.
-	String name = "sdbmtmp"+rand.nextInt(Integer.MAX_VALUE);
-	
-	Sdbm tmp = new Sdbm(dirFile.getAbsoluteFile().getParentFile(),
-			    name,"rw");
+	checkPair(klen,vlen);
+
+	long start = metrics != null ? System.nanoTime() : 0;
+	int hash = hashFunction.hash(key,koff,klen);
 
-	// Use a page enumerator to ensure that the elementCount is accurate,
-	// considering that some pages may contain stale/invalid data.
-	for (Enumeration en = pages();en.hasMoreElements();) {
-	    Page p = (Page) en.nextElement();
-	    if (page == null) {
-		page = p;
+	lock.writeLock().lock();
+	try {
+	    try {
+		return putLocked(hash,key,koff,klen,val,voff,vlen);
+	    } finally {
+		commit();
 	    }
-	    for (int i=0;i<p.size();i++) {
-		String key = new String(p.getKeyAt(i));
-		String value = new String(p.getElementAt(i));
-		if (key != null && value != null) {
-		    tmp.put(key,value);
-		}
+	} finally {
+	    lock.writeLock().unlock();
+	    if (metrics != null) {
+		metrics.put.since(start);
 	    }
 	}
+    }
 
-	tmp.close();
-       
-	dirRaf.close();
-	pagRaf.close();
+    private byte[] putLocked(int hash, byte[] key, int koff, int klen,
+			     byte[] val, int voff, int vlen)
+	throws IOException, SdbmException {
+	modified();
+	// makeRoom() may move the pair to another page, it's this one
+	// that is handed back.
+	Page got = getPage(hash);
+	Page page = got;
+	try {
+	    // if we need to replace, delete the key/data pair
+	    // first. If it is not there, ignore.
+	    byte[] oldVal = null;
+	    byte[] oldRef = null;
+	    int i = find(page,hash,key,koff,klen);
+	    if (i != -1) {
+		if (page.isOverflow(i/2)) {
+		    oldRef = page.getElementAt(i/2);
+		    oldVal = ovf.read(oldRef);
+		}
+		byte[] b = page.remove(key,koff,klen);
+		if (oldRef == null) {
+		    oldVal = b;
+		}
+		elementCount--;
+	    }
 
+	    // a value too big for a page goes to the overflow file, the page
+	    // only gets a reference to it.
+	    boolean overflow = klen + vlen > pairMax;
+	    if (overflow) {
+		val = ovf.write(val,voff,vlen);
+		voff = 0;
+		vlen = val.length;
+	    }
+	    int need = klen + vlen;
 
-	dirFile.delete();
-	pagFile.delete();
+	    // if we do not have enough room, we have to split.
+	    if (!page.hasRoom(need)) {
+		try {
+		    page = makeRoom(hash, need, page);
+		} catch (SdbmException e) {
+		    if (overflow) {
+			ovf.free(val);
+		    }
+		    throw e;
+		}
+	    }
 
-	tmp.dirFile.renameTo(dirFile);
-	tmp.pagFile.renameTo(pagFile);
+	    // we have enough room or split is successful. insert the key,
+	    // and update the page file.
 
-	dirRaf = new RandomAccessFile(dirFile,mode);
-	pagRaf = new RandomAccessFile(pagFile,mode);
-	//zero the dirbuf
-	dirbuf = new byte[DBLKSIZ];
+	    page.put(key,koff,klen,val,voff,vlen,overflow);
+	    if (bloom != null && i == -1) {
+		bloom.add(key,koff,klen);
+	    }
+	    if (index != null && i == -1) {
+		indexed(key,koff,klen,true);
+	    }
 
-	// need the dirfile size to establish max bit number.
-	// zero size: either a fresh database, or one with a single,
-	// unsplit data page: dirpage is all zeros.
-	dirbno = dirRaf.length() == 0 ? 0 : -1;
-	maxbno = (int) dirRaf.length() * BITSINBYTE;	
+	    elementCount++;
+	    //	page.print();
 
-	// re-count the elements because there may have been duplicate keys
-	// in the old dbm.
-	elementCount = 0;
-	for (Enumeration en = pages();en.hasMoreElements();) {
-	    Page p = (Page) en.nextElement();
-	    if (page == null) {
-		page = p;
+	    writePage(page);
+	    if (oldRef != null) {
+		ovf.free(oldRef);
 	    }
-	    elementCount += p.size();
+	    return oldVal;
+	} finally {
+	    pageCache.release(got);
 	}
     }
 
     /**
-     * removes the value associated with the key
-     * @returns the removed value, null if it didn't exist.
+     * Throws SdbmException if a pair doesn't fit in a page even with
+     * its value in the overflow file.
      */
-    public synchronized String remove(String key) throws IOException{
-	checkKey(key);
-
-	byte[] keyBytes = key.getBytes();
-	page = getPage(Hash.hash(keyBytes));
-	if (page == null) {
-	    return null;
+    private void checkPair(int klen, int vlen) throws SdbmException {
+	if (klen + Math.min(vlen,OverflowFile.REFSIZ) > pairMax) {
+	    throw new SdbmException("Key is too big for this database");
 	}
-
-	int n = page.size();
-	byte[] removeBytes = page.remove(keyBytes);
-	String val = null;
-	if (removeBytes != null) {
-	    val = new String(removeBytes);
-	}
-
-	if (page.size() < n) {
-	    elementCount--;
-	}
-
-	// update the page file
-	pagRaf.seek(OFF_PAG(page.bno));
-	pagRaf.write(page.pag,0, PBLKSIZ);
-
-	return val;
     }
 
     /**
-     * puts the value into the database using key as its key.
-     * @returns the old value of the key.
+     * @return an empty batch whose String methods use this database's
+     * charset.
      */
-    public synchronized String put(String key, String value) 
-	throws IOException, SdbmException {
-	
-	checkKey(key);
-
-	byte[] keyBytes = key.getBytes();
-
-	int need = key.length() + value.length();
-	// is the pair too big for this database ??
-	if (need > PAIRMAX) {
-	    throw new SdbmException("Pair is too big for this database");
-	}
-
-	int hash = Hash.hash(keyBytes);
-
-	page = getPage(hash);
-
-	// if we need to replace, delete the key/data pair
-	// first. If it is not there, ignore.
-	int n = page.size();
-	byte[] valBytes = page.remove(keyBytes);
-	String val = null;
-	if (valBytes != null) {
-	    val = new String(valBytes);
-	}
+    public WriteBatch newWriteBatch() {
+	return new WriteBatch(charset);
+    }
 
-	if (page.size() < n) {
-	    elementCount--;
+    /**
+     * Applies all the puts and removes of batch at once.  Readers are
+     * kept out until it is done, and each page and directory block it
+     * modifies is written once at the end instead of once per change
+     * (or left dirty in the cache with write-back caching).  Changes
+     * are applied page by page so a batch larger than the page cache
+     * still mostly writes each page once.  If a pair
+     * doesn't fit, or anything else goes wrong, the changes already
+     * applied are undone before the exception is thrown.  Should an
+     * undo fail as well, its exception is added to the first as a
+     * suppressed one, and the batch is left partly applied.
+     */
+    public void write(WriteBatch batch) throws IOException, SdbmException {
+	// check everything before touching the database.
+	int n = batch.ops.size();
+	byte[][] keys = new byte[n][];
+	byte[][] vals = new byte[n][];
+	long[] order = new long[n];
+	int i = 0;
+	for (Map.Entry<ByteBuffer,byte[]> e : batch.ops.entrySet()) {
+	    byte[] key = e.getKey().array();
+	    checkKey(key,0,key.length);
+	    byte[] val = e.getValue();
+	    if (val != null) {
+		checkPair(key.length,val.length);
+	    }
+	    keys[i] = key;
+	    vals[i] = val;
+	    // the low bits of the hash pick the page, sorting on them
+	    // reversed puts the keys of a page next to each other.
+	    order[i] = (Integer.reverse(hashFunction.hash(key)) & 0xffffffffL) << 32 | i;
+	    i++;
 	}
+	Arrays.sort(order);
 
-	// if we do not have enough room, we have to split.
-	if (!page.hasRoom(need)) {
-	    makeRoom(hash, need);
+	lock.writeLock().lock();
+	pageCache.setDeferred(true);
+	dirCache.setDeferred(true);
+	try {
+	    // previous values, in the order the keys were changed.
+	    ArrayList<byte[]> undo = new ArrayList<byte[]>();
+	    try {
+		for (i=0;i<n;i++) {
+		    byte[] key = keys[(int) order[i]];
+		    byte[] val = vals[(int) order[i]];
+		    int hash = hashFunction.hash(key,0,key.length);
+		    // taken first, a failed split may have removed it already.
+		    undo.add(key);
+		    undo.add(valueOf(hash,key,0,key.length));
+		    if (val == null) {
+			removeLocked(hash,key,0,key.length);
+		    } else {
+			putLocked(hash,key,0,key.length,val,0,val.length);
+		    }
+		}
+	    } catch (Throwable e) {
+		for (i=undo.size()-2;i>=0;i-=2) {
+		    byte[] key = undo.get(i);
+		    byte[] old = undo.get(i+1);
+		    int hash = hashFunction.hash(key,0,key.length);
+		    // carry on with the rest whatever happens.
+		    try {
+			if (old == null) {
+			    removeLocked(hash,key,0,key.length);
+			} else {
+			    putLocked(hash,key,0,key.length,old,0,old.length);
+			}
+		    } catch (Throwable u) {
+			e.addSuppressed(u);
+		    }
+		}
+		throw e;
+	    }
+	} finally {
+	    pageCache.setDeferred(false);
+	    dirCache.setDeferred(false);
+	    try {
+		if (!options.getWriteBack()) {
+		    // pages before the directory bits that point at them.
+		    pageCache.flush();
+		    dirCache.flush();
+		}
+		// the whole batch is one record.
+		commit();
+	    } finally {
+		lock.writeLock().unlock();
+	    }
 	}
-
-	// we have enough room or split is successful. insert the key,
-	// and update the page file.
-
-	page.put(keyBytes, value.getBytes());
-
-	elementCount++;
-	//	page.print();
-
-	pagRaf.seek(OFF_PAG(page.bno));
-	pagRaf.write(page.pag,0, PBLKSIZ);
-
-	return val;    
     }
 
     /**
      * @returns true if it is empty, false otherwise.
      */
-    public synchronized boolean isEmpty() {
-	return elementCount <= 0;
+    public boolean isEmpty() {
+	return size() <= 0;
     }
 
     /**
      * @returns the number of elements in the database.
      */
-    public synchronized int size() {
-	return elementCount;
+    public int size() {
+	lock.readLock().lock();
+	try {
+	    return elementCount;
+	} finally {
+	    lock.readLock().unlock();
+	}
     }
 
     /**
      * @returns a random key from the dbm, null if empty.
      */
-    public synchronized String randomKey() throws IOException {
+    public String randomKey() throws IOException {
 	Iterator it = randomKeys(1);
 	return it.hasNext() ? (String) it.next() : null;
     }
@@ -374,46 +1604,56 @@ public class Sdbm {
      * @param n The number of desired keys.
      * @returns a number of random keys, up to n
      */
-    public synchronized Iterator randomKeys(int n) throws IOException {
+    public Iterator randomKeys(int n) throws IOException {
 	HashSet keys = new HashSet();
-	
-	if (rand == null) {
-	    rand = new Random();
-	}
 
-	// There is a chance that the dbm may be dirty and that there is
-	// a misscount on the number of keys, or it is very sparse and thus
-	// difficult to find random keys.  If this counter goes above N, 
-	// then clean the database before continueing.
-	int i=0;
-	
-	while (keys.size() < size() && keys.size() < n) {
-    
-	    // The pages should be relatively balanced, so if we choose
-	    // a random value in a random page we should have a decent
-	    // distribution.
-	    
-	    Page p = null;
-	    do {
-		// This dbm is not in good shape, clean it up.
-		// This takes a long time, so don't do it often.
-		if (i != 0 && i == 2*Math.min(n,size())) {
-		    // FIX this should be augmented with a 'modified' flag
-		    // to avoid redundant cleans.
-		    clean();
-		}
-		
-		i++;
-		
-		// Use rand to choose a random hash.
-		p = getPage(rand.nextInt());
-	    } while (p.size() == 0);
-	    
-	    keys.add(new String(p.getKeyAt(rand.nextInt(p.size()))));
-	    
-	}
+	// exclusive, we share rand and may have to clean().
+	lock.writeLock().lock();
+	try {
+	    if (rand == null) {
+		rand = new Random();
+	    }
+
+	    // There is a chance that the dbm may be dirty and that there is
+	    // a misscount on the number of keys, or it is very sparse and
+	    // thus difficult to find random keys.  If this counter goes
+	    // above N, then clean the database before continueing.
+	    int i=0;
+
+	    while (keys.size() < size() && keys.size() < n) {
+
+		// The pages should be relatively balanced, so if we choose
+		// a random value in a random page we should have a decent
+		// distribution.
+
+		Page p = null;
+		do {
+		    if (p != null) {
+			pageCache.release(p);
+		    }
+		    // This dbm is not in good shape, clean it up.
+		    // This takes a long time, so don't do it often.
+		    if (i != 0 && i == 2*Math.min(n,size()) &&
+			modCount != compactedAt) {
+			clean();
+		    }
 
-	System.out.println("Took "+i+" iterations to find keys");
+		    i++;
+
+		    // Use rand to choose a random hash.
+		    p = getPage(rand.nextInt());
+		} while (p.size() == 0);
+
+		keys.add(new String(p.getKeyAt(rand.nextInt(p.size())),
+				    charset));
+		pageCache.release(p);
+
+	    }
+
+	    System.out.println("Took "+i+" iterations to find keys");
+	} finally {
+	    lock.writeLock().unlock();
+	}
 
 	return keys.iterator();
     }
@@ -421,20 +1661,26 @@ public class Sdbm {
     /**
      * makroom - make room by splitting the overfull page
      * this routine will attempt to make room for SPLTMAX times before
-     * giving up.
+     * giving up.  The caller must hold the write lock.
+     *
+     * @return the page the incoming pair goes into.
      */
-    private synchronized void makeRoom(int hash, int need) throws IOException, 
-	SdbmException {
-	
+    private Page makeRoom(int hash, int need, Page page) 
+	throws IOException, SdbmException {
+
 	Page newPage;
 
+	// where getPage found the page, as it doesn't keep track.
+	int curbit = dirBit(hash);
+	int hmask = masks[depth(curbit)];
+
 	int smax = SPLTMAX;
 	do {
 
 	    // Very important, don't want to write over newPage on loop.
-	    newPage = new Page(PBLKSIZ);
+	    newPage = new Page(pageSize);
 	    // split the current page
-	    page.split(newPage, hmask + 1);
+	    page.split(newPage, hmask + 1, hashFunction);
 
 	    // address of the new page
 	    newPage.bno = (hash & hmask) | (hmask + 1);
@@ -443,23 +1689,24 @@ public class Sdbm {
 	    // select the page for incoming pair: if key is to go to the new
 	    // page, write out the previous one, and copy the new one over,
 	    // thus making it the current page. If not, simply write the new
-	    // page, and we are still looking at the page of interest. current
-	    // page is not updated here, as put will do so, after it inserts
-	    // the incoming pair.
+	    // page, and we are still looking at the page of interest.
+	    // current page is not updated here, as put will do so, after
+	    // it inserts the incoming pair.
+	    if (metrics != null) {
+		metrics.splits.increment();
+	    }
 	    if ((hash & (hmask + 1)) != 0) {
-		pagRaf.seek(OFF_PAG(page.bno));
-		pagRaf.write(page.pag,0, PBLKSIZ);
+		writePage(page);
 		page = newPage;
 	    } else {
-		pagRaf.seek(OFF_PAG(newPage.bno));
-		pagRaf.write(newPage.pag,0, PBLKSIZ);
+		writePage(newPage);
 	    }
 
 	    setdbit(curbit);
 
 	    // see if we have enough room now
 	    if (page.hasRoom(need))
-		return;
+		return page;
 
 	    // try again... update curbit and hmask as getpage would have
 	    // done. because of our update of the current page, we do not
@@ -468,13 +1715,15 @@ public class Sdbm {
 	    curbit = 2 * curbit + ((hash & (hmask + 1)) != 0 ? 2 : 1);
 	    hmask |= hmask + 1;
 
-	    pagRaf.seek(OFF_PAG(page.bno));
-	    pagRaf.write(page.pag,0, PBLKSIZ);
+	    writePage(page);
 
 	} while (--smax != 0);
 
 	// if we are here, this is real bad news. After SPLTMAX splits,
 	// we still cannot fit the key. say goodnight.
+	if (metrics != null) {
+	    metrics.splitFailures.increment();
+	}
 	throw new SdbmException("AIEEEE! Cannot insert after SPLTMAX attempts");
     }
 
@@ -486,46 +1735,334 @@ public class Sdbm {
     }
 
     private class PageEnumerator implements Enumeration {
-	int blkptr;
+	PageScanner scanner;
 	PageEnumerator() {
+	    // we read the file, make sure it is current.
+	    try {
+		flushCaches();
+	    } catch (IOException e) {
+		throw new NoSuchElementException(e.getMessage());
+	    }
+	    scanner = new PageScanner(Sdbm.this,0,-1);
 	}
 
 	public boolean hasMoreElements() {
-	    synchronized (Sdbm.this) {
-		//If we're at the end of the file.
+	    //If we're at the end of the file.
+	    try {
+		return scanner.hasNext();
+	    } catch (IOException e) {
+		return false;
+	    }
+	}
+
+	public Object nextElement() {
+	    if (!hasMoreElements()) {
+		throw new NoSuchElementException("PageEnumerator");
+	    }
+	    Page p = new Page(pageSize);
+	    lock.readLock().lock();
+	    try {
+		scanner.next(p);
+	    } catch (IOException e) {
+		throw new NoSuchElementException(e.getMessage());
+	    } finally {
+		lock.readLock().unlock();
+	    }
+		
+	    if (!p.isValid())
+		throw new NoSuchElementException("PageEnumerator");
+	    return p;
+	}
+    }
+
+    /**
+     * Reads page bno into p, from the cache if it is there.  The caller
+     * must hold the read lock.
+     */
+    void loadPage(int bno, Page p) throws IOException {
+	if (!pageCache.peek(bno,p.pag)) {
+	    pagf.read(OFF_PAG(bno), p.pag, 0, pageSize);
+	}
+	p.bno = bno;
+	p.dropFingerprints();
+    }
+
+    /**
+     * @return the pairs of the next page of scanner, key, value, key,
+     * value...  Reads it under the read lock, values in the overflow
+     * file included.
+     */
+    private byte[][] pairs(PageScanner scanner, Page p) throws IOException {
+	lock.readLock().lock();
+	try {
+	    scanner.next(p);
+	    if (!p.isValid()) {
+		throw new SdbmException("Corrupt page "+p.bno);
+	    }
+	    byte[][] pairs = new byte[2 * p.size()][];
+	    for (int i=0;i<p.size();i++) {
+		pairs[2*i] = p.getKeyAt(i);
+		pairs[2*i+1] = valueAt(p,i);
+	    }
+	    return pairs;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * @return the pairs of the database, splitting into ranges of
+     * pages.  Each page is read holding the read lock for a moment,
+     * so changes made meanwhile may or may not be seen, and pages
+     * added by splits while it runs are not.
+     */
+    public Spliterator<Map.Entry<byte[],byte[]>> spliterator() {
+	lock.readLock().lock();
+	try {
+	    flushCaches();
+	    int pages = (int) pageCount();
+	    return new PairSpliterator(0,pages,pages,elementCount);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public Iterator<Map.Entry<byte[],byte[]>> iterator() {
+	return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * @return a stream of the pairs, see spliterator().  I/O errors
+     * are thrown as UncheckedIOException.
+     */
+    public Stream<Map.Entry<byte[],byte[]>> stream() {
+	return StreamSupport.stream(spliterator(),false);
+    }
+
+    /**
+     * @return a parallel stream of the pairs, which reads ranges of
+     * pages on as many threads as the common pool has.
+     */
+    public Stream<Map.Entry<byte[],byte[]>> parallelStream() {
+	return StreamSupport.stream(spliterator(),true);
+    }
+
+    private class PairSpliterator 
+	implements Spliterator<Map.Entry<byte[],byte[]>> {
+	int bno;                 // next page
+	int end;                 // past the last page
+	int pages;               // of the whole database
+	int count;               // pairs in the whole database
+	Page p;
+	PageScanner scanner;     // from the first tryAdvance() on
+	byte[][] pairs;          // of the page before bno
+	int n;
+
+	PairSpliterator(int bno, int end, int pages, int count) {
+	    this.bno = bno;
+	    this.end = end;
+	    this.pages = pages;
+	    this.count = count;
+	}
+
+	public boolean tryAdvance
+	    (Consumer<? super Map.Entry<byte[],byte[]>> action) {
+	    while (pairs == null || n == pairs.length) {
+		if (bno >= end) {
+		    return false;
+		}
+		if (p == null) {
+		    p = new Page(pageSize);
+		    scanner = new PageScanner(Sdbm.this,bno,end);
+		}
 		try {
-		    if (OFF_PAG(blkptr) >= pagRaf.length()) {
+		    if (!scanner.hasNext()) {
 			return false;
 		    }
-		    
+		    pairs = pairs(scanner,p);
+		    bno++;
 		} catch (IOException e) {
-		    return false;
+		    throw new UncheckedIOException(e);
 		}
-		return true;
+		n = 0;
 	    }
+	    action.accept(new AbstractMap.SimpleImmutableEntry<byte[],byte[]>
+			  (pairs[n],pairs[n+1]));
+	    n += 2;
+	    return true;
 	}
 
-	public Object nextElement() {
-	    synchronized (Sdbm.this) {
-		if (!hasMoreElements()) {
-		    throw new NoSuchElementException("PageEnumerator");
+	public Spliterator<Map.Entry<byte[],byte[]>> trySplit() {
+	    int mid = (bno + end) >>> 1;
+	    if (mid <= bno || scanner != null) {
+		return null;
+	    }
+	    PairSpliterator s = new PairSpliterator(bno,mid,pages,count);
+	    bno = mid;
+	    return s;
+	}
+
+	public long estimateSize() {
+	    return pages == 0 ? 0 : (long) count * (end - bno) / pages;
+	}
+
+	public int characteristics() {
+	    return NONNULL | DISTINCT;
+	}
+    }
+
+    /**
+     * Hands every pair to action in one pass over the .pag file,
+     * without copying them: key and value are read only views of a
+     * page buffer, their position and limit framing the bytes.  They
+     * are reused for the next pair, so copy what is to be kept.  No
+     * lock is held while action runs, it may modify the database;
+     * whether it then sees its changes is as for spliterator().
+     */
+    public void forEach(BiConsumer<ByteBuffer,ByteBuffer> action)
+	throws IOException {
+	flushCaches();
+	Page p = new Page(pageSize);
+	ByteBuffer key = ByteBuffer.wrap(p.pag).asReadOnlyBuffer();
+	ByteBuffer val = ByteBuffer.wrap(p.pag).asReadOnlyBuffer();
+	PageScanner scanner = new PageScanner(this,0,-1);
+	while (scanner.hasNext()) {
+	    byte[][] big = null;  // values from the overflow file
+	    lock.readLock().lock();
+	    try {
+		scanner.next(p);
+		if (!p.isValid()) {
+		    throw new SdbmException("Corrupt page "+p.bno);
 		}
-		Page p = new Page(PBLKSIZ);
-		if (page == null || page.bno != blkptr) {
-		    try {
-			pagRaf.seek(OFF_PAG(blkptr));
-			readLots(pagRaf, p.pag, 0, PBLKSIZ);
-		    } catch (IOException e) {
-			throw new NoSuchElementException(e.getMessage());
+		for (int i=0;i<p.size();i++) {
+		    if (p.isOverflow(i)) {
+			if (big == null) {
+			    big = new byte[p.size()][];
+			}
+			big[i] = valueAt(p,i);
 		    }
+		}
+	    } finally {
+		lock.readLock().unlock();
+	    }
+
+	    for (int i=0;i<p.size();i++) {
+		key.clear();
+		key.position(p.keyOffset(i));
+		key.limit(p.keyOffset(i) + p.keyLength(i));
+		if (big != null && big[i] != null) {
+		    action.accept(key,ByteBuffer.wrap(big[i]).asReadOnlyBuffer());
 		} else {
-		    p = page;
+		    val.clear();
+		    val.position(p.elementOffset(i));
+		    val.limit(p.elementOffset(i) + p.elementLength(i));
+		    action.accept(key,val);
 		}
-		
-		if (!p.isValid() || p == null)
-		    throw new NoSuchElementException("PageEnumerator");
-		blkptr++;
-		return p;
+	    }
+	}
+    }
+
+    /**
+     * @return the pairs with keys from from, inclusive, up to to,
+     * exclusive, in the order of their keys as unsigned bytes.  Either
+     * bound may be null for none.  Only the pages of those keys are
+     * read.  Needs SdbmOptions.setSortedIndex(), throws
+     * IllegalStateException without it or if it has been dropped.
+     * <p>
+     * The pairs are looked up RANGEBATCH at a time holding the read
+     * lock, so changes made meanwhile may or may not be seen.  I/O
+     * errors are thrown as UncheckedIOException.
+     */
+    public Iterator<Map.Entry<byte[],byte[]>> range(byte[] from, byte[] to) {
+	checkIndex();
+	return new RangeIterator(from,to);
+    }
+
+    /**
+     * @return the pairs whose keys start with prefix, in order, see
+     * range().
+     */
+    public Iterator<Map.Entry<byte[],byte[]>> prefixScan(byte[] prefix) {
+	return range(prefix,KeyIndex.successor(prefix));
+    }
+
+    private void checkIndex() {
+	if (indexError != null) {
+	    throw new IllegalStateException("sorted index dropped",indexError);
+	} else if (index == null) {
+	    throw new IllegalStateException
+		("no sorted index, see SdbmOptions.setSortedIndex()");
+	}
+    }
+
+    static final int RANGEBATCH = 256;
+
+    private class RangeIterator implements Iterator<Map.Entry<byte[],byte[]>> {
+	byte[] from;
+	byte[] to;
+	byte[] last;             // of the last batch
+	boolean done;
+	List<Map.Entry<byte[],byte[]>> batch =
+	    new ArrayList<Map.Entry<byte[],byte[]>>();
+	int n;
+
+	RangeIterator(byte[] from, byte[] to) {
+	    this.from = from;
+	    this.to = to;
+	}
+
+	public boolean hasNext() {
+	    while (n == batch.size() && !done) {
+		fill();
+	    }
+	    return n < batch.size();
+	}
+
+	public Map.Entry<byte[],byte[]> next() {
+	    if (!hasNext()) {
+		throw new NoSuchElementException("RangeIterator");
+	    }
+	    return batch.get(n++);
+	}
+
+	/**
+	 * Looks up the keys of the next batch, which may all be gone by
+	 * now.
+	 */
+	private void fill() {
+	    batch.clear();
+	    n = 0;
+	    byte[][] k = new byte[RANGEBATCH][];
+	    int count = 0;
+	    lock.readLock().lock();
+	    try {
+		// it may have been dropped since the last batch.
+		checkIndex();
+		count = index.next(from,last,to,k);
+		done = count < k.length;
+		if (count == 0) {
+		    return;
+		}
+		last = k[count-1];
+
+		int[] hashes = new int[count];
+		for (int i=0;i<count;i++) {
+		    hashes[i] = hashFunction.hash(k[i],0,k[i].length);
+		}
+		byte[][] v = getAllLocked(k,hashes,count);
+		for (int i=0;i<count;i++) {
+		    if (v[i] != null) {
+			// the index's own copy must not get out.
+			batch.add(new AbstractMap.SimpleImmutableEntry<byte[],byte[]>
+				  (k[i].clone(),v[i]));
+		    }
+		}
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    } finally {
+		lock.readLock().unlock();
 	    }
 	}
     }
@@ -533,14 +2070,14 @@ public class Sdbm {
     /**
      * returns an enumeration of the keys in the database.
      */
-    public synchronized Enumeration keys() {
+    public Enumeration keys() {
 	return new Enumerator(true);
     }
 
     /**
      * returns an enumeration of the elements in the database.
      */
-    public synchronized Enumeration elements() {
+    public Enumeration elements() {
 	return new Enumerator(false) ;
     }
 
@@ -548,7 +2085,7 @@ public class Sdbm {
 	boolean key;
 	Enumeration penum;
 	Page p;
-	Enumeration enum;
+	Enumeration en;
 	String next;
 
 	Enumerator(boolean key) {
@@ -556,7 +2093,7 @@ public class Sdbm {
 	    penum = pages();
 	    if (penum.hasMoreElements()) {
 		p = (Page) penum.nextElement();
-		enum = key ? p.keys() : p.elements();
+		en = key ? p.keys() : values(p);
 		next = getNext();
 	    } else {
 		next = null;
@@ -564,133 +2101,161 @@ public class Sdbm {
 	}
 
 	public boolean hasMoreElements() {
-	    synchronized (Sdbm.this) {
-		return next != null;
-	    }
+	    return next != null;
 	}
 
 	private String getNext() {
 	    for (;;) {
-		if (!(penum.hasMoreElements() || enum.hasMoreElements())) {
+		if (!(penum.hasMoreElements() || en.hasMoreElements())) {
 		    return null;
 		}
-		if (enum.hasMoreElements()) {
-		    byte[] b = (byte[]) enum.nextElement();
+		if (en.hasMoreElements()) {
+		    byte[] b = (byte[]) en.nextElement();
 		    if (b != null) {
-			return new String(b);
+			return new String(b,charset);
 		    }
 		} else if (penum.hasMoreElements()) {
 		    p = (Page) penum.nextElement();
-		    enum = key ? p.keys() : p.elements();
+		    en = key ? p.keys() : values(p);
 		}
 	    }
 	}
 
+	/**
+	 * the values of p, from the overflow file if need be.
+	 */
+	private Enumeration values(final Page p) {
+	    return new Enumeration() {
+		    int n;
+
+		    public boolean hasMoreElements() {
+			return n < p.size();
+		    }
+
+		    public Object nextElement() {
+			lock.readLock().lock();
+			try {
+			    return valueAt(p,n++);
+			} catch (IOException e) {
+			    throw new NoSuchElementException(e.getMessage());
+			} finally {
+			    lock.readLock().unlock();
+			}
+		    }
+		};
+	}
+
 	public Object nextElement() {
-	    synchronized (Sdbm.this) {
-		String s = next;
-		if (s == null) {
-		    throw new NoSuchElementException("Enumerator");
-		}
-		next = getNext();
-		return s;
+	    // the page enumerator does the locking.
+	    String s = next;
+	    if (s == null) {
+		throw new NoSuchElementException("Enumerator");
 	    }
+	    next = getNext();
+	    return s;
 	}
     }
 
     /**
-     * all important binary tree traversal
+     * all important binary tree traversal.
+     * This has no side effects but on the caches, so that any number of
+     * readers may call it at once.  The caller must hold the read lock,
+     * and hand the page back with pageCache.release() when done with it
+     * so that its frame can be reused.
      */
-    protected synchronized Page getPage(int hash) throws IOException {
-	int hbit = 0;
-	int dbit = 0;
+    protected Page getPage(int hash) throws IOException {
 	int pagb;
-	Page newPage;
 	//System.out.println("maxbno:"+maxbno);
 	//System.out.println("hash:"+hash);
 
-	while (dbit < maxbno && getdbit(dbit) != 0) {
-	    dbit = 2 * dbit + ((hash & (1 << hbit++)) != 0 ? 2 : 1);
-	}
+	int dbit = dirBit(hash);
 
 	//System.out.println("dbit: "+dbit+"...");
 
-	curbit = dbit;
-	hmask = masks[hbit];
-
-	pagb = hash & hmask;
+	pagb = hash & masks[depth(dbit)];
 
 	//System.out.println("pagb: "+pagb);
-	// see if the block we need is already in memory.
-	// note: this lookaside cache has about 10% hit rate.
-	if (page == null || pagb != page.bno) {
-
-	    // note: here, we assume a "hole" is read as 0s.
-	    // if not, must zero pagbuf first.
-	    pagRaf.seek(OFF_PAG(pagb));
-	    byte[] b = new byte[PBLKSIZ];
-	    readLots(pagRaf, b, 0, PBLKSIZ);
-	    newPage = new Page(b);
+	// the cache reads the block in if it isn't already in memory,
+	// and fails with an SdbmException if the one on disk is corrupt.
+	// note: the BlockFile reads a "hole" as 0s.
+	return pageCache.get(pagb);
+    }
 
-	    if (!newPage.isValid()) {
-		// FIX maybe there is a better way to deal with corruption?
-		// Corrupt page, return an empty one.
-		b = new byte[PBLKSIZ];
-		newPage = new Page(b);
+    /**
+     * @return the bit number of the directory trie leaf for hash.
+     * <p>
+     * The path for hash visits one bit per level, bit n of the hash
+     * picking the child at level n+1, so the bit at level d is the
+     * low d hash bits reversed below a leading 1, less 1.  A page is
+     * only split after its parent, so the bits set along the path are
+     * the ones above the leaf and the leaf is found by a binary search
+     * on the level.
+     */
+    private int dirBit(int hash) {
+	long rev = Integer.reverse(hash) & 0xffffffffL;
+	int lo = 0;
+	int hi = 32;  // past any bit maxbno can reach
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (isdbit(dirNode(rev,mid))) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
 	    }
-
-	    newPage.bno = pagb;
-
-	    //System.out.println("pag read: "+pagb);
-	} else {
-	    newPage = page;
 	}
-
-	return newPage;
+	return (int) dirNode(rev,lo);
     }
 
-    protected synchronized int getdbit(int dbit) throws IOException {
-	int c;
-	int dirb;
-
-	c = dbit / BITSINBYTE;
-	dirb = c / DBLKSIZ;
-
-	if (dirb != dirbno) {
-	    dirRaf.seek(OFF_DIR(dirb));
-	    readLots(dirRaf ,dirbuf,0, DBLKSIZ);
+    /**
+     * @return the directory bit at level d on the path of the hash
+     * whose bits reversed are rev.
+     */
+    private static long dirNode(long rev, int d) {
+	return ((1L << d) | (d == 0 ? 0 : rev >>> (32 - d))) - 1;
+    }
 
-	    dirbno = dirb;
+    /**
+     * @return true if directory bit dbit is set.
+     */
+    private boolean isdbit(long dbit) {
+	long w = dbit >>> 6;
+	return w < dirBits.length && (dirBits[(int) w] & (1L << dbit)) != 0;
+    }
 
-	    //System.out.println("dir read: "+dirb);
-	}
+    /**
+     * @return the depth of directory bit dbit in the trie, which is the
+     * number of hash bits that lead to it.  Level n holds the bits
+     * 2^n-1 .. 2^(n+1)-2.
+     */
+    private static int depth(int dbit) {
+	return 31 - Integer.numberOfLeadingZeros(dbit + 1);
+    }
 
-	return dirbuf[c % DBLKSIZ] & (1 << dbit % BITSINBYTE);
+    protected int getdbit(int dbit) throws IOException {
+	return isdbit(dbit) ? 1 << dbit % BITSINBYTE : 0;
     }
 
-    protected synchronized void setdbit(int dbit) throws IOException {
+    protected void setdbit(int dbit) throws IOException {
 	int c = dbit / BITSINBYTE;
 	int dirb = c / DBLKSIZ;
-	
-	if (dirb != dirbno) {
-	    clearByteArray(dirbuf);
-	    dirRaf.seek(OFF_DIR(dirb));
-	    readLots(dirRaf,dirbuf,0, DBLKSIZ);
-	    
-	    dirbno = dirb;
-	    
-	    //System.out.println("dir read: "+dirb);
+
+	int w = dbit >>> 6;
+	if (w >= dirBits.length) {
+	    dirBits = Arrays.copyOf(dirBits,Math.max(w + 1,2 * dirBits.length));
+	}
+	dirBits[w] |= 1L << dbit;
+	if (metrics != null) {
+	    metrics.directoryWrites.increment();
 	}
 
-	dirbuf[c % DBLKSIZ] |= (1 << dbit % BITSINBYTE);
+	Page dirbuf = dirCache.get(dirb);
+	dirbuf.pag[c % DBLKSIZ] |= (1 << dbit % BITSINBYTE);
 
 	if (dbit >= maxbno)
 	    maxbno += DBLKSIZ * BITSINBYTE;
 
-
-	dirRaf.seek(OFF_DIR(dirb));
-	dirRaf.write(dirbuf,0, DBLKSIZ);
-
+	dirCache.put(dirbuf);
+	dirCache.release(dirbuf);
     }
 
     public static void clearByteArray(byte[] arr) {
@@ -0,0 +1,43 @@
+package org.solinger.sdbm;
+
+/**
+ * The metrics of an Sdbm as seen through JMX.  The get latency covers
+ * containsKey() as well, the put and remove latencies single puts and
+ * removes, not write batches.  Page reads are the .pag blocks the
+ * page cache had to read.
+ *
+ * @see Sdbm#registerMBean
+ * @see SdbmOptions#setMetrics
+ */
+public interface SdbmMXBean {
+
+    /** @return the number of pairs in the database. */
+    public int getSize();
+
+    public LatencyStats getGetLatency();
+
+    /** @return the durations of getAll(), one sample per call. */
+    public LatencyStats getGetAllLatency();
+
+    public LatencyStats getPutLatency();
+
+    public LatencyStats getRemoveLatency();
+
+    /** @return the durations of compact() and clean(). */
+    public LatencyStats getCompactLatency();
+
+    public long getPageCacheHits();
+
+    public long getPageReads();
+
+    public long getPageWrites();
+
+    /** @return the pages split to make room for a pair. */
+    public long getSplits();
+
+    /** @return the puts that failed after SPLTMAX splits. */
+    public long getSplitFailures();
+
+    /** @return the directory bits set by splits. */
+    public long getDirectoryWrites();
+}
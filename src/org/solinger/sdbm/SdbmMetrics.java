@@ -0,0 +1,87 @@
+package org.solinger.sdbm;
+
+/**
+ * A snapshot of an Sdbm's metrics.
+ *
+ * @see Sdbm#getMetrics
+ */
+public class SdbmMetrics implements SdbmMXBean {
+
+    private int size;
+    private LatencyStats get, getAll, put, remove, compact;
+    private long pageCacheHits, pageReads, pageWrites;
+    private long splits, splitFailures, directoryWrites;
+
+    SdbmMetrics(SdbmMXBean m) {
+	size = m.getSize();
+	get = m.getGetLatency();
+	getAll = m.getGetAllLatency();
+	put = m.getPutLatency();
+	remove = m.getRemoveLatency();
+	compact = m.getCompactLatency();
+	pageCacheHits = m.getPageCacheHits();
+	pageReads = m.getPageReads();
+	pageWrites = m.getPageWrites();
+	splits = m.getSplits();
+	splitFailures = m.getSplitFailures();
+	directoryWrites = m.getDirectoryWrites();
+    }
+
+    public int getSize() {
+	return size;
+    }
+
+    public LatencyStats getGetLatency() {
+	return get;
+    }
+
+    public LatencyStats getGetAllLatency() {
+	return getAll;
+    }
+
+    public LatencyStats getPutLatency() {
+	return put;
+    }
+
+    public LatencyStats getRemoveLatency() {
+	return remove;
+    }
+
+    public LatencyStats getCompactLatency() {
+	return compact;
+    }
+
+    public long getPageCacheHits() {
+	return pageCacheHits;
+    }
+
+    public long getPageReads() {
+	return pageReads;
+    }
+
+    public long getPageWrites() {
+	return pageWrites;
+    }
+
+    public long getSplits() {
+	return splits;
+    }
+
+    public long getSplitFailures() {
+	return splitFailures;
+    }
+
+    public long getDirectoryWrites() {
+	return directoryWrites;
+    }
+
+    public String toString() {
+	return "SdbmMetrics[size="+size+",get="+get+",getAll="+getAll+
+	    ",put="+put+
+	    ",remove="+remove+",compact="+compact+
+	    ",pageCacheHits="+pageCacheHits+",pageReads="+pageReads+
+	    ",pageWrites="+pageWrites+",splits="+splits+
+	    ",splitFailures="+splitFailures+
+	    ",directoryWrites="+directoryWrites+"]";
+    }
+}
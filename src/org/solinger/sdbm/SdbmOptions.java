@@ -0,0 +1,414 @@
+package org.solinger.sdbm;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tunables for opening an Sdbm.  The defaults, which the three
+ * argument constructor uses, are:
+ * <ul>
+ * <li>1024 byte pages and the original sdbm hash for a new database,
+ * whatever its .meta header says for an existing one.  Files without a
+ * header are read as 1024 byte sdbm ones, and get a header the first
+ * time they are opened "rw".
+ * <li>positional I/O through a RandomAccessFile, writing through.
+ * <li>a cache of 64 pages and one of 4 directory blocks.
+ * <li>String keys and values encoded as UTF-8, where the original
+ * used the platform charset.
+ * <li>no off heap cache, fingerprints, Bloom filter, sorted index,
+ * metrics or write-ahead log.
+ * </ul>
+ * <pre>
+ *   Sdbm db = new Sdbm(dir,"cache","rw",
+ *                      new SdbmOptions().setIoEngine(SdbmOptions.IO_MAPPED));
+ * </pre>
+ */
+public class SdbmOptions implements Cloneable {
+
+    /** positional read/write through a RandomAccessFile's channel. */
+    public static final int IO_RANDOM_ACCESS = 0;
+    /** memory map the .dir and .pag files. */
+    public static final int IO_MAPPED = 1;
+
+    /** no write-ahead log, the default. */
+    public static final int WAL_OFF = 0;
+    /** log, but never force the log to disk. */
+    public static final int WAL_NONE = 1;
+    /** force the log once for many operations. */
+    public static final int WAL_BATCH = 2;
+    /** force the log before every operation returns. */
+    public static final int WAL_PER_OP = 3;
+
+    int ioEngine = IO_RANDOM_ACCESS;
+    int pageCacheSize = 64;
+    int dirCacheSize = 4;
+    long offHeapCacheSize = 0;
+    boolean writeBack = false;
+    int pageSize = Sdbm.PBLKSIZ;
+    HashFunction hashFunction = HashFunction.SDBM;
+    boolean fingerprints = false;
+    long bloomKeys = 0;
+    double bloomFpp = 0;
+    boolean metrics = false;
+    boolean sortedIndex = false;
+    long sortedIndexLimit = 64L << 20;
+    int wal = WAL_OFF;
+    long walSyncBytes = 1024 * 1024;
+    long walCheckpointBytes = 64 * 1024 * 1024;
+    int scanBufferSize = 1024 * 1024;
+    boolean scanReadAhead = false;
+    Charset charset = StandardCharsets.UTF_8;
+
+    public SdbmOptions() {
+    }
+
+    /**
+     * @param ioEngine one of IO_RANDOM_ACCESS or IO_MAPPED
+     */
+    public SdbmOptions setIoEngine(int ioEngine) {
+	if (ioEngine != IO_RANDOM_ACCESS && ioEngine != IO_MAPPED) {
+	    throw new IllegalArgumentException("unknown io engine: "+ioEngine);
+	}
+	this.ioEngine = ioEngine;
+	return this;
+    }
+
+    public int getIoEngine() {
+	return ioEngine;
+    }
+
+    /**
+     * @param pages The number of .pag blocks to keep in memory.
+     */
+    public SdbmOptions setPageCacheSize(int pages) {
+	if (pages < 1) {
+	    throw new IllegalArgumentException("page cache size: "+pages);
+	}
+	this.pageCacheSize = pages;
+	return this;
+    }
+
+    public int getPageCacheSize() {
+	return pageCacheSize;
+    }
+
+    /**
+     * @param blocks The number of .dir blocks to buffer when pages
+     * split.  Lookups use a copy of the whole directory held in memory.
+     */
+    public SdbmOptions setDirCacheSize(int blocks) {
+	if (blocks < 1) {
+	    throw new IllegalArgumentException("dir cache size: "+blocks);
+	}
+	this.dirCacheSize = blocks;
+	return this;
+    }
+
+    public int getDirCacheSize() {
+	return dirCacheSize;
+    }
+
+    /**
+     * @param bytes The memory to keep pages evicted from the page cache
+     * in, outside the java heap, or 0 (the default) for none.  It is
+     * allocated in full when the database is opened.  With this the
+     * page cache itself can stay small, the pages in here cost a copy
+     * to use but nothing to the garbage collector.
+     */
+    public SdbmOptions setOffHeapCacheSize(long bytes) {
+	if (bytes < 0) {
+	    throw new IllegalArgumentException("off heap cache size: "+bytes);
+	}
+	this.offHeapCacheSize = bytes;
+	return this;
+    }
+
+    public long getOffHeapCacheSize() {
+	return offHeapCacheSize;
+    }
+
+    /**
+     * @param writeBack If true, modified blocks are only written out when
+     * they are evicted from the cache or on flush()/close().  This saves
+     * a write per put/remove, but a crash can lose or tear the unwritten
+     * blocks.  The default is to write through.
+     */
+    public SdbmOptions setWriteBack(boolean writeBack) {
+	this.writeBack = writeBack;
+	return this;
+    }
+
+    public boolean getWriteBack() {
+	return writeBack;
+    }
+
+    /**
+     * @param pageSize The .pag block size of a new database, a power of
+     * two from 1024 (the default) to Page.MAXPAGESIZE.  Something like
+     * the OS page size (4096) or a multiple suits larger values.  An
+     * existing database keeps the size it was created with.
+     */
+    public SdbmOptions setPageSize(int pageSize) {
+	if (pageSize < Sdbm.PBLKSIZ || pageSize > Page.MAXPAGESIZE ||
+	    (pageSize & (pageSize - 1)) != 0) {
+	    throw new IllegalArgumentException("page size: "+pageSize);
+	}
+	this.pageSize = pageSize;
+	return this;
+    }
+
+    public int getPageSize() {
+	return pageSize;
+    }
+
+    /**
+     * @param hashFunction The hash function of a new database, SDBM by
+     * default.  An existing database keeps the one it was created with.
+     */
+    public SdbmOptions setHashFunction(HashFunction hashFunction) {
+	if (hashFunction == null) {
+	    throw new NullPointerException();
+	}
+	this.hashFunction = hashFunction;
+	return this;
+    }
+
+    public HashFunction getHashFunction() {
+	return hashFunction;
+    }
+
+    /**
+     * @param fingerprints If true each cached page keeps the hashes of
+     * its keys, so that a lookup only compares the bytes of keys whose
+     * hash matches.  This costs an int per pair in memory, nothing on
+     * disk, and hashing all of a page's keys on the first lookup after
+     * it is read or changed.  That only pays off if a cached page is
+     * looked up many times in between: with a small page cache, or
+     * many misses, it makes lookups slower.  Off by default.
+     */
+    public SdbmOptions setFingerprints(boolean fingerprints) {
+	this.fingerprints = fingerprints;
+	return this;
+    }
+
+    public boolean getFingerprints() {
+	return fingerprints;
+    }
+
+    /**
+     * @param expectedKeys The number of keys to size the Bloom filter for.
+     * @param fpp The false positive rate wanted at that many keys,
+     * between 0 and 1.
+     * <p>
+     * Keeps a Bloom filter of the keys in memory and in a name.blm file
+     * beside the database, so that most lookups of missing keys are
+     * answered without reading a page.  Off by default.  Removed keys
+     * stay in the filter and more keys than expected raise the false
+     * positive rate, until compact() builds it again sized for the keys
+     * there are.  The filter is rebuilt with a scan of the database on
+     * open when the .blm file is missing or out of date.
+     */
+    public SdbmOptions setBloomFilter(long expectedKeys, double fpp) {
+	if (expectedKeys < 1 || !(fpp > 0 && fpp < 1)) {
+	    throw new IllegalArgumentException("bloom filter: "+expectedKeys+
+					       " keys, fpp "+fpp);
+	}
+	this.bloomKeys = expectedKeys;
+	this.bloomFpp = fpp;
+	return this;
+    }
+
+    /**
+     * @return the keys the Bloom filter is sized for, 0 if it is off.
+     */
+    public long getBloomExpectedKeys() {
+	return bloomKeys;
+    }
+
+    /**
+     * @return the wanted false positive rate, 0 if the Bloom filter is
+     * off.
+     */
+    public double getBloomFpp() {
+	return bloomFpp;
+    }
+
+    /**
+     * @param metrics If true, count and time the operations, see
+     * Sdbm.getMetrics() and Sdbm.registerMBean().  The counters are
+     * striped, so threads don't contend on them, but timing costs two
+     * System.nanoTime() calls an operation.  Off, the default, it costs
+     * nothing to speak of.
+     */
+    public SdbmOptions setMetrics(boolean metrics) {
+	this.metrics = metrics;
+	return this;
+    }
+
+    public boolean getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * @param durability One of WAL_OFF, WAL_NONE, WAL_BATCH or
+     * WAL_PER_OP.
+     * <p>
+     * Without a write-ahead log (WAL_OFF, the default) a crash in the
+     * middle of a split can leave pages and directory out of step,
+     * and reading a corrupt page fails with an SdbmException.  With
+     * one, each put, remove or write batch logs the blocks it changes
+     * to a name.wal file before they are written to the database, and
+     * opening the database replays the log, so that every operation is
+     * applied whole or not at all.  The durability says when the log is forced
+     * to disk:
+     * <ul>
+     * <li>WAL_NONE never, which survives the process crashing but not
+     * the machine.
+     * <li>WAL_BATCH once walSyncBytes of log have piled up and on
+     * flush(), checkpoint() and close().  Operations since then are
+     * lost in a crash, but each with all its blocks.
+     * <li>WAL_PER_OP before each operation returns.
+     * </ul>
+     * The blocks are written to the database once the log is forced,
+     * so write-back caching makes no difference.
+     */
+    public SdbmOptions setWriteAheadLog(int durability) {
+	if (durability < WAL_OFF || durability > WAL_PER_OP) {
+	    throw new IllegalArgumentException("durability: "+durability);
+	}
+	this.wal = durability;
+	return this;
+    }
+
+    public int getWriteAheadLog() {
+	return wal;
+    }
+
+    /**
+     * @param bytes With WAL_BATCH, force the log after this much has
+     * been added to it.  1MB by default.
+     */
+    public SdbmOptions setWalSyncBytes(long bytes) {
+	if (bytes < 1) {
+	    throw new IllegalArgumentException("wal sync bytes: "+bytes);
+	}
+	this.walSyncBytes = bytes;
+	return this;
+    }
+
+    public long getWalSyncBytes() {
+	return walSyncBytes;
+    }
+
+    /**
+     * @param bytes Checkpoint once the log grows this big: force the
+     * database files and empty the log.  64MB by default.
+     */
+    public SdbmOptions setWalCheckpointBytes(long bytes) {
+	if (bytes < 1) {
+	    throw new IllegalArgumentException("wal checkpoint bytes: "+bytes);
+	}
+	this.walCheckpointBytes = bytes;
+	return this;
+    }
+
+    public long getWalCheckpointBytes() {
+	return walCheckpointBytes;
+    }
+
+    /**
+     * @param bytes How much of the .pag file scans read at once: the
+     * enumerations, streams, forEach(), compact() and opening a
+     * database that wasn't closed.  1MB by default.
+     */
+    public SdbmOptions setScanBufferSize(int bytes) {
+	if (bytes < 1) {
+	    throw new IllegalArgumentException("scan buffer size: "+bytes);
+	}
+	this.scanBufferSize = bytes;
+	return this;
+    }
+
+    public int getScanBufferSize() {
+	return scanBufferSize;
+    }
+
+    /**
+     * @param sortedIndex If true, the database keeps its keys in order
+     * for Sdbm.range() and Sdbm.prefixScan(), in a sorted run in
+     * name.idx and the changes since in memory, see
+     * setSortedIndexLimit().  It costs some work on every put and
+     * remove.  The run is only complete after a clean close(); after a
+     * crash the index is rebuilt by reading every page on the next
+     * open.  Writes never fail because of the index: if it can't be
+     * kept up, say the disk is full, it is dropped and range() throws
+     * until clear().
+     */
+    public SdbmOptions setSortedIndex(boolean sortedIndex) {
+	this.sortedIndex = sortedIndex;
+	return this;
+    }
+
+    public boolean getSortedIndex() {
+	return sortedIndex;
+    }
+
+    /**
+     * @param bytes The memory the changes to the sorted index may take
+     * before they are merged into its run on disk, counting each key
+     * as its length plus 64 bytes.  Rebuilding the index sorts the keys
+     * in parts of this size.  64MB by default.
+     */
+    public SdbmOptions setSortedIndexLimit(long bytes) {
+	if (bytes < 1) {
+	    throw new IllegalArgumentException("sorted index limit < 1: "+
+					       bytes);
+	}
+	this.sortedIndexLimit = bytes;
+	return this;
+    }
+
+    public long getSortedIndexLimit() {
+	return sortedIndexLimit;
+    }
+
+    /**
+     * @param readAhead If true, scans read the next buffer on a
+     * background thread while they work through the current one,
+     * which takes twice the memory.  Off by default.
+     */
+    public SdbmOptions setScanReadAhead(boolean readAhead) {
+	this.scanReadAhead = readAhead;
+	return this;
+    }
+
+    public boolean getScanReadAhead() {
+	return scanReadAhead;
+    }
+
+    /**
+     * @param charset The encoding of keys and values used by the String
+     * methods of Sdbm.  The default is UTF-8, whatever the platform
+     * default is.  Databases written by earlier versions used the
+     * platform default encoding.
+     */
+    public SdbmOptions setCharset(Charset charset) {
+	if (charset == null) {
+	    throw new NullPointerException();
+	}
+	this.charset = charset;
+	return this;
+    }
+
+    public Charset getCharset() {
+	return charset;
+    }
+
+    public Object clone() {
+	try {
+	    return super.clone();
+	} catch (CloneNotSupportedException e) {
+	    throw new InternalError(e.toString());
+	}
+    }
+}
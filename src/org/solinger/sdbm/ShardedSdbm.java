@@ -0,0 +1,441 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A database made of N independent Sdbms, each key living in one of
+ * them.  Each shard has its own lock and files, so writers to
+ * different shards don't wait for each other, and the shards may be
+ * spread over several disks.  Compaction, bulk loading and scans run
+ * on all shards at once.
+ * <p>
+ * Shard i of database name is name.i in dirs[i % dirs.length].  The
+ * number of shards is recorded in name.shards in dirs[0] and can't
+ * change, as it decides where every key lives.  Keys are assigned by
+ * the high bits of their 64 bit xxHash, which are unrelated to the
+ * bits each shard's directory splits on.
+ * <p>
+ * Operations on several shards are not atomic as a whole.
+ */
+public class ShardedSdbm {
+
+    public static final String SHARDSEXT = ".shards";
+
+    Sdbm[] shards;
+    Charset charset;
+    ExecutorService pool;
+
+    /**
+     * @param dirs The directories to spread the shards over.
+     * @param name The name of the database.
+     * @param shards The number of shards, which must match what the
+     * database was created with.
+     * @param mode The mode to open the database in, either "r" or "rw"
+     * @param options How to open each shard, see SdbmOptions.
+     */
+    public ShardedSdbm(File[] dirs, String name, int shards, String mode,
+		       SdbmOptions options) throws IOException {
+	boolean created = !checkShards(dirs,name,shards);
+	this.charset = options.getCharset();
+	this.shards = new Sdbm[shards];
+	try {
+	    for (int i=0;i<shards;i++) {
+		this.shards[i] = new Sdbm(dir(dirs,i),name+"."+i,mode,options);
+	    }
+	    if (created && mode.equals("rw")) {
+		writeShards(dirs,name,shards);
+	    }
+	} catch (IOException | RuntimeException e) {
+	    for (int i=0;i<shards && this.shards[i] != null;i++) {
+		try {
+		    this.shards[i].close();
+		} catch (IOException c) {
+		    e.addSuppressed(c);
+		}
+	    }
+	    throw e;
+	}
+	pool = newPool(shards);
+    }
+
+    private static File dir(File[] dirs, int i) {
+	return dirs[i % dirs.length];
+    }
+
+    /**
+     * Checks the number of shards against name.shards.
+     *
+     * @return false if there is no name.shards yet.
+     */
+    private static boolean checkShards(File[] dirs, String name, int shards)
+	throws IOException {
+	if (shards < 1 || dirs.length < 1) {
+	    throw new IllegalArgumentException("shards: "+shards);
+	}
+	File f = new File(dirs[0],name+SHARDSEXT);
+	if (f.exists()) {
+	    DataInputStream in = new DataInputStream(new FileInputStream(f));
+	    try {
+		int n = in.readInt();
+		if (n != shards) {
+		    throw new SdbmException(name+" has "+n+" shards, not "+
+					    shards);
+		}
+	    } finally {
+		in.close();
+	    }
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Records the number of shards of a new database, once all of
+     * them are there, so that a failed open leaves nothing behind.
+     * It is written aside, forced and renamed into place, a crash
+     * leaves either no name.shards or a whole one.
+     */
+    private static void writeShards(File[] dirs, String name, int shards)
+	throws IOException {
+	File f = new File(dirs[0],name+SHARDSEXT);
+	File tmp = new File(f.getPath()+".tmp");
+	FileOutputStream fos = new FileOutputStream(tmp);
+	try {
+	    DataOutputStream out = new DataOutputStream(fos);
+	    out.writeInt(shards);
+	    out.flush();
+	    fos.getChannel().force(true);
+	} finally {
+	    fos.close();
+	}
+	Files.move(tmp.toPath(),f.toPath(),StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ExecutorService newPool(int shards) {
+	int n = Math.min(shards,Runtime.getRuntime().availableProcessors());
+	return Executors.newFixedThreadPool(n,new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r,"ShardedSdbm");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    }
+
+    /**
+     * Something to do with one shard.
+     */
+    interface ShardTask<T> {
+	public T run(int shard) throws IOException;
+    }
+
+    /**
+     * Runs task on every shard at once.
+     *
+     * @return the results, by shard.
+     */
+    static <T> List<T> forAll(ExecutorService pool, int shards,
+			      final ShardTask<T> task) throws IOException {
+	List<Future<T>> futures = new ArrayList<Future<T>>();
+	for (int i=0;i<shards;i++) {
+	    final int shard = i;
+	    futures.add(pool.submit(new Callable<T>() {
+		    public T call() throws IOException {
+			return task.run(shard);
+		    }
+		}));
+	}
+	List<T> results = new ArrayList<T>();
+	IOException error = null;
+	// wait for all of them, even after a failure.
+	for (Future<T> f : futures) {
+	    try {
+		results.add(f.get());
+	    } catch (ExecutionException e) {
+		Throwable t = e.getCause();
+		if (t instanceof RuntimeException) {
+		    throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+		    throw (Error) t;
+		}
+		if (error == null) {
+		    error = (IOException) t;
+		}
+		results.add(null);
+	    } catch (InterruptedException e) {
+		throw new InterruptedIOException(e.getMessage());
+	    }
+	}
+	if (error != null) {
+	    throw error;
+	}
+	return results;
+    }
+
+    private <T> List<T> forAll(ShardTask<T> task) throws IOException {
+	return forAll(pool,shards.length,task);
+    }
+
+    /**
+     * @return the shard key[off..off+len) lives in.
+     */
+    static int shardOf(byte[] key, int off, int len, int shards) {
+	long h = Hash.xxhash64(key,off,len) >>> 32;
+	return (int) ((h * shards) >>> 32);
+    }
+
+    private Sdbm shard(byte[] key, int off, int len) {
+	return shards[shardOf(key,off,len,shards.length)];
+    }
+
+    public int getShardCount() {
+	return shards.length;
+    }
+
+    /**
+     * @return shard i, for what this class doesn't offer.
+     */
+    public Sdbm getShard(int i) {
+	return shards[i];
+    }
+
+    public String get(String key) throws IOException {
+	byte[] b = get(key.getBytes(charset));
+	return b == null ? null : new String(b,charset);
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+	return shard(key,0,key.length).get(key);
+    }
+
+    public int get(byte[] key, int off, int len, ByteBuffer out)
+	throws IOException {
+	return shard(key,off,len).get(key,off,len,out);
+    }
+
+    public boolean containsKey(String key) throws IOException {
+	return containsKey(key.getBytes(charset));
+    }
+
+    public boolean containsKey(byte[] key) throws IOException {
+	return shard(key,0,key.length).containsKey(key);
+    }
+
+    public String put(String key, String value) throws IOException {
+	byte[] b = put(key.getBytes(charset),value.getBytes(charset));
+	return b == null ? null : new String(b,charset);
+    }
+
+    public byte[] put(byte[] key, byte[] value) throws IOException {
+	return shard(key,0,key.length).put(key,value);
+    }
+
+    public String remove(String key) throws IOException {
+	byte[] b = remove(key.getBytes(charset));
+	return b == null ? null : new String(b,charset);
+    }
+
+    public byte[] remove(byte[] key) throws IOException {
+	return shard(key,0,key.length).remove(key);
+    }
+
+    /**
+     * @return the number of pairs in all shards.
+     */
+    public int size() {
+	int n = 0;
+	for (int i=0;i<shards.length;i++) {
+	    n += shards[i].size();
+	}
+	return n;
+    }
+
+    public boolean isEmpty() {
+	return size() <= 0;
+    }
+
+    public void clear() throws IOException {
+	forAll(new ShardTask<Object>() {
+		public Object run(int i) throws IOException {
+		    shards[i].clear();
+		    return null;
+		}
+	    });
+    }
+
+    public void flush() throws IOException {
+	forAll(new ShardTask<Object>() {
+		public Object run(int i) throws IOException {
+		    shards[i].flush();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Compacts all shards at once, see Sdbm.compact().
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public long compact() throws IOException {
+	long n = 0;
+	for (Long r : forAll(new ShardTask<Long>() {
+		public Long run(int i) throws IOException {
+		    return shards[i].compact();
+		}
+	    })) {
+	    n += r;
+	}
+	return n;
+    }
+
+    /**
+     * @return the pairs of all shards, splitting by shard first and
+     * then by ranges of pages within them, see Sdbm.spliterator().
+     */
+    public Spliterator<Map.Entry<byte[],byte[]>> spliterator() {
+	List<Spliterator<Map.Entry<byte[],byte[]>>> s =
+	    new ArrayList<Spliterator<Map.Entry<byte[],byte[]>>>();
+	for (int i=0;i<shards.length;i++) {
+	    s.add(shards[i].spliterator());
+	}
+	return new ConcatSpliterator(s);
+    }
+
+    public Stream<Map.Entry<byte[],byte[]>> stream() {
+	return StreamSupport.stream(spliterator(),false);
+    }
+
+    public Stream<Map.Entry<byte[],byte[]>> parallelStream() {
+	return StreamSupport.stream(spliterator(),true);
+    }
+
+    /**
+     * Sdbm.forEach() on every shard at once, so action is called from
+     * several threads and has to be thread safe.
+     */
+    public void forEach(final BiConsumer<ByteBuffer,ByteBuffer> action)
+	throws IOException {
+	forAll(new ShardTask<Object>() {
+		public Object run(int i) throws IOException {
+		    shards[i].forEach(action);
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * The spliterators of the shards one after the other.  Splits hand
+     * over half of the shards, or of the one shard left.
+     */
+    private static class ConcatSpliterator
+	implements Spliterator<Map.Entry<byte[],byte[]>> {
+	List<Spliterator<Map.Entry<byte[],byte[]>>> parts;
+	int i;
+
+	ConcatSpliterator(List<Spliterator<Map.Entry<byte[],byte[]>>> parts) {
+	    this.parts = parts;
+	}
+
+	public boolean tryAdvance
+	    (Consumer<? super Map.Entry<byte[],byte[]>> action) {
+	    for (;i < parts.size();i++) {
+		if (parts.get(i).tryAdvance(action)) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	public Spliterator<Map.Entry<byte[],byte[]>> trySplit() {
+	    int left = parts.size() - i;
+	    if (left == 1) {
+		return parts.get(i).trySplit();
+	    } else if (left < 1) {
+		return null;
+	    }
+	    int mid = i + left / 2;
+	    Spliterator<Map.Entry<byte[],byte[]>> s =
+		new ConcatSpliterator(new ArrayList<Spliterator<Map.Entry<byte[],byte[]>>>
+				      (parts.subList(i,mid)));
+	    i = mid;
+	    return s;
+	}
+
+	public long estimateSize() {
+	    long n = 0;
+	    for (int j=i;j<parts.size();j++) {
+		n += parts.get(j).estimateSize();
+	    }
+	    return n;
+	}
+
+	public int characteristics() {
+	    return NONNULL | DISTINCT;
+	}
+    }
+
+    public void close() throws IOException {
+	try {
+	    forAll(new ShardTask<Object>() {
+		    public Object run(int i) throws IOException {
+			shards[i].close();
+			return null;
+		    }
+		});
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * Replaces database name with the given pairs, bulk loading all
+     * shards at once, see BulkLoader.  Pairs for a shard are held in
+     * memory up to memoryLimit / shards, then spilled to disk.
+     *
+     * @return the number of pairs in the database.
+     */
+    public static int bulkLoad(final File[] dirs, final String name,
+			       int shards, SdbmOptions options,
+			       long memoryLimit,
+			       Iterator<? extends Map.Entry<byte[],byte[]>> pairs)
+	throws IOException {
+	boolean created = !checkShards(dirs,name,shards);
+	final BulkLoader[] loaders = new BulkLoader[shards];
+	for (int i=0;i<shards;i++) {
+	    loaders[i] = new BulkLoader(dir(dirs,i),name+"."+i,options).
+		setMemoryLimit(Math.max(1,memoryLimit / shards));
+	}
+	while (pairs.hasNext()) {
+	    Map.Entry<byte[],byte[]> e = pairs.next();
+	    byte[] key = e.getKey();
+	    loaders[shardOf(key,0,key.length,shards)].add(key,e.getValue());
+	}
+
+	ExecutorService pool = newPool(shards);
+	try {
+	    int n = 0;
+	    for (Integer c : forAll(pool,shards,new ShardTask<Integer>() {
+		    public Integer run(int i) throws IOException {
+			return loaders[i].build();
+		    }
+		})) {
+		n += c;
+	    }
+	    if (created) {
+		writeShards(dirs,name,shards);
+	    }
+	    return n;
+	} finally {
+	    pool.shutdown();
+	}
+    }
+}
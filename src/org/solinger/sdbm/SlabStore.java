@@ -0,0 +1,262 @@
+package org.solinger.sdbm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pages kept outside the java heap, in direct buffers allocated once
+ * up to a fixed budget.  It sits behind a BlockCache: the pages it
+ * evicts are copied in here, and a miss there looks here before going
+ * to the file.  As the slabs are a handful of large objects whatever
+ * their size, gigabytes of pages can be cached without the collector
+ * ever looking at them.
+ * <p>
+ * The slabs are cut into page sized slots and split between segments
+ * the way BlockCache is, each with its own monitor, hash chains and
+ * CLOCK hand.  A copy in here is always as new as the file, it is
+ * replaced on every eviction and dropped when the page is modified.
+ */
+class SlabStore {
+
+    /** the largest slab, a direct buffer is indexed by an int. */
+    static final int MAXSLAB = 1 << 30;
+
+    int pageSize;
+    int capacity;
+    int perSlab;             // slots per slab
+    ByteBuffer[] slabs;
+    Segment[] segs;
+
+    /**
+     * @param bytes the memory budget, at least one page.
+     */
+    SlabStore(int pageSize, long bytes) {
+	if (bytes < pageSize) {
+	    throw new IllegalArgumentException("off heap cache size: "+bytes);
+	}
+	this.pageSize = pageSize;
+	this.capacity = (int) Math.min(Integer.MAX_VALUE, bytes / pageSize);
+	this.perSlab = MAXSLAB / pageSize;
+
+	int n = (int) ((capacity + (long) perSlab - 1) / perSlab);
+	slabs = new ByteBuffer[n];
+	for (int i=0;i<n;i++) {
+	    int slots = Math.min(perSlab, capacity - i * perSlab);
+	    slabs[i] = ByteBuffer.allocateDirect(slots * pageSize);
+	}
+
+	n = 1;
+	while (n < BlockCache.MAXSEGS && n * 8 <= capacity) {
+	    n <<= 1;
+	}
+	segs = new Segment[n];
+	int base = 0;
+	for (int i=0;i<n;i++) {
+	    int slots = capacity / n + (i < capacity % n ? 1 : 0);
+	    segs[i] = new Segment(base,slots);
+	    base += slots;
+	}
+    }
+
+    private static int hash(int bno) {
+	return bno * 0x9E3779B9;
+    }
+
+    private Segment segment(int h) {
+	return segs[h & (segs.length - 1)];
+    }
+
+    /**
+     * Copies page bno into b.
+     *
+     * @param use if true it counts as a hit or miss.
+     * @return false if it isn't here.
+     */
+    boolean read(int bno, byte[] b, boolean use) {
+	int h = hash(bno);
+	return segment(h).read(bno,h,b,use);
+    }
+
+    /**
+     * Keeps a copy of page bno, replacing any older one.
+     */
+    void write(int bno, byte[] b) {
+	int h = hash(bno);
+	segment(h).write(bno,h,b);
+    }
+
+    /**
+     * Drops page bno, which is about to change.
+     */
+    void remove(int bno) {
+	int h = hash(bno);
+	segment(h).remove(bno,h);
+    }
+
+    /**
+     * Drops every page, the files have been replaced.
+     */
+    void clear() {
+	for (int i=0;i<segs.length;i++) {
+	    segs[i].clear();
+	}
+    }
+
+    CacheStats getStats() {
+	int size = 0;
+	long hits = 0, misses = 0, evictions = 0, writes = 0;
+	for (int i=0;i<segs.length;i++) {
+	    Segment s = segs[i];
+	    synchronized (s) {
+		size += s.size;
+		hits += s.hits;
+		misses += s.misses;
+		evictions += s.evictions;
+		writes += s.writes;
+	    }
+	}
+	return new CacheStats(capacity,size,hits,misses,evictions,writes);
+    }
+
+    private class Segment {
+	int base;                // first slot
+	int[] bnos;              // slot -> page, -1 if free
+	boolean[] ref;           // CLOCK reference bits
+	int[] next;              // hash chain, -1 terminated
+	int[] heads;             // hash bucket -> first slot
+	int shift;
+	int[] free;              // slots given back by remove()
+	int nfree;
+	int used;                // slots handed out so far
+	int size;
+	int hand;
+	// the segment's own views, their positions are only moved
+	// holding it.
+	ByteBuffer[] views;
+
+	long hits, misses, evictions, writes;
+
+	Segment(int base, int capacity) {
+	    this.base = base;
+	    bnos = new int[capacity];
+	    ref = new boolean[capacity];
+	    next = new int[capacity];
+	    free = new int[capacity];
+
+	    int n = 2;
+	    shift = 31;
+	    while (n < 2 * capacity) {
+		n <<= 1;
+		shift--;
+	    }
+	    heads = new int[n];
+	    clear();
+
+	    views = new ByteBuffer[slabs.length];
+	    for (int i=0;i<views.length;i++) {
+		views[i] = slabs[i].duplicate();
+	    }
+	}
+
+	synchronized void clear() {
+	    for (int i=0;i<heads.length;i++) {
+		heads[i] = -1;
+	    }
+	    used = size = nfree = hand = 0;
+	}
+
+	private int find(int bno, int h) {
+	    for (int f = heads[h >>> shift];f != -1;f = next[f]) {
+		if (bnos[f] == bno) {
+		    return f;
+		}
+	    }
+	    return -1;
+	}
+
+	/**
+	 * @return the view of slot f, positioned at its start.
+	 */
+	private ByteBuffer view(int f) {
+	    int slot = base + f;
+	    ByteBuffer v = views[slot / perSlab];
+	    v.position((slot % perSlab) * pageSize);
+	    return v;
+	}
+
+	synchronized boolean read(int bno, int h, byte[] b, boolean use) {
+	    int f = find(bno,h);
+	    if (f == -1) {
+		if (use) {
+		    misses++;
+		}
+		return false;
+	    }
+	    if (use) {
+		hits++;
+		ref[f] = true;
+	    }
+	    view(f).get(b,0,pageSize);
+	    return true;
+	}
+
+	synchronized void write(int bno, int h, byte[] b) {
+	    int f = find(bno,h);
+	    if (f == -1) {
+		if (nfree > 0) {
+		    f = free[--nfree];
+		} else if (used < bnos.length) {
+		    f = used++;
+		} else {
+		    f = victim();
+		    unlink(f);
+		    size--;
+		    evictions++;
+		}
+		int k = h >>> shift;
+		next[f] = heads[k];
+		heads[k] = f;
+		bnos[f] = bno;
+		size++;
+	    }
+	    ref[f] = true;
+	    view(f).put(b,0,pageSize);
+	    writes++;
+	}
+
+	synchronized void remove(int bno, int h) {
+	    int f = find(bno,h);
+	    if (f != -1) {
+		unlink(f);
+		bnos[f] = -1;
+		ref[f] = false;
+		free[nfree++] = f;
+		size--;
+	    }
+	}
+
+	private int victim() {
+	    for (;;) {
+		int f = hand;
+		hand = (hand + 1) % bnos.length;
+		if (bnos[f] != -1 && !ref[f]) {
+		    return f;
+		}
+		ref[f] = false;
+	    }
+	}
+
+	private void unlink(int f) {
+	    int k = hash(bnos[f]) >>> shift;
+	    if (heads[k] == f) {
+		heads[k] = next[f];
+		return;
+	    }
+	    for (int g = heads[k];next[g] != -1;g = next[g]) {
+		if (next[g] == f) {
+		    next[g] = next[f];
+		    return;
+		}
+	    }
+	}
+    }
+}
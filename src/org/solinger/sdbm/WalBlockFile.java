@@ -0,0 +1,132 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A BlockFile whose writes go to the write-ahead log before the file.
+ * Written blocks are staged in memory until the WriteAheadLog commits
+ * them as a record, then kept pending until the log is forced and
+ * they are applied to the file.  Reads see the latest image of a
+ * block, so the database never notices.
+ * <p>
+ * Only touched under the database's write lock, apart from reads
+ * under the read lock, which see no changes.
+ */
+class WalBlockFile implements BlockFile {
+
+    BlockFile file;
+    int blockSize;
+    long length;
+    HashMap<Long,byte[]> staged = new HashMap<Long,byte[]>();
+    TreeMap<Long,byte[]> pending = new TreeMap<Long,byte[]>();
+
+    WalBlockFile(BlockFile file, int blockSize) throws IOException {
+	this.file = file;
+	this.blockSize = blockSize;
+	this.length = file.length();
+    }
+
+    /**
+     * Makes the images recovered from the log visible without writing
+     * them, for a database opened read only.
+     */
+    void seed(Map<Long,byte[]> images) {
+	for (Map.Entry<Long,byte[]> e : images.entrySet()) {
+	    byte[] img = new byte[blockSize];
+	    byte[] b = e.getValue();
+	    System.arraycopy(b,0,img,0,b.length);
+	    pending.put(e.getKey(),img);
+	    length = Math.max(length,e.getKey() + b.length);
+	}
+    }
+
+    /**
+     * @return the bytes of the block at start that are in the file.
+     */
+    int imageLength(long start) {
+	return (int) Math.min(blockSize,length - start);
+    }
+
+    private byte[] image(long start) {
+	byte[] img = staged.get(start);
+	return img != null ? img : pending.get(start);
+    }
+
+    /**
+     * Writes the pending blocks to the file, in order.
+     */
+    void apply() throws IOException {
+	for (Map.Entry<Long,byte[]> e : pending.entrySet()) {
+	    long start = e.getKey();
+	    file.write(start,e.getValue(),0,imageLength(start));
+	}
+	pending.clear();
+    }
+
+    public void read(long pos, byte[] b, int off, int len)
+	throws IOException {
+	read(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void read(long pos, ByteBuffer dst) throws IOException {
+	if (staged.isEmpty() && pending.isEmpty()) {
+	    file.read(pos,dst);
+	    return;
+	}
+	while (dst.hasRemaining()) {
+	    long start = pos - pos % blockSize;
+	    int n = (int) Math.min(dst.remaining(),start + blockSize - pos);
+	    byte[] img = image(start);
+	    if (img != null) {
+		dst.put(img,(int) (pos - start),n);
+	    } else {
+		ByteBuffer d = dst.duplicate();
+		d.limit(d.position() + n);
+		file.read(pos,d);
+		dst.position(dst.position() + n);
+	    }
+	    pos += n;
+	}
+    }
+
+    public void write(long pos, byte[] b, int off, int len)
+	throws IOException {
+	write(pos,ByteBuffer.wrap(b,off,len));
+    }
+
+    public void write(long pos, ByteBuffer src) throws IOException {
+	while (src.hasRemaining()) {
+	    long start = pos - pos % blockSize;
+	    int n = (int) Math.min(src.remaining(),start + blockSize - pos);
+	    byte[] img = staged.get(start);
+	    if (img == null) {
+		// logged images are never changed, work on a copy.
+		img = new byte[blockSize];
+		byte[] old = pending.get(start);
+		if (old != null) {
+		    System.arraycopy(old,0,img,0,blockSize);
+		} else if (n < blockSize) {
+		    file.read(start,img,0,blockSize);
+		}
+		staged.put(start,img);
+	    }
+	    src.get(img,(int) (pos - start),n);
+	    pos += n;
+	}
+	length = Math.max(length,pos);
+    }
+
+    public long length() {
+	return length;
+    }
+
+    public void force() throws IOException {
+	file.force();
+    }
+
+    public void close() throws IOException {
+	file.close();
+    }
+}
@@ -0,0 +1,270 @@
+package org.solinger.sdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The name.wal file.  Every modification of the database ends with
+ * commit(), which appends the images of all the blocks it changed in
+ * the .dir, .pag and .ovf files as one record.  The blocks only reach
+ * those files after their record is in the log, forced to disk first
+ * unless the durability is WAL_NONE.  A crash can then only leave
+ * torn or missing block writes behind, and opening the database again
+ * replays the log over them.  checkpoint() forces the files and
+ * empties the log.
+ * <p>
+ * A record is
+ * <pre>
+ *   int   MAGIC
+ *   int   length of the images
+ *   long  CRC32 of the images
+ *   the images, each:
+ *     byte  file, an index into the files given to the constructor
+ *     long  position
+ *     int   length
+ *     the bytes
+ * </pre>
+ * Replay stops at the first record that is cut short or fails its
+ * CRC, the ones after it were never acknowledged.
+ * <p>
+ * All methods need the database's write lock.
+ */
+class WriteAheadLog {
+
+    static final int MAGIC = 0x5344574c;
+    static final int HEADER = 16;
+
+    File file;
+    File[] paths;              // the files, by index
+    boolean writable;
+    int durability;
+    long syncBytes;
+    long checkpointBytes;
+    WalBlockFile[] files;      // the open ones, by index
+    List<Map<Long,byte[]>> recovered = new ArrayList<Map<Long,byte[]>>();
+    RandomAccessFile raf;
+    FileChannel channel;
+    long length;               // of the log
+    long unsynced;             // bytes appended since the last force
+
+    /**
+     * Opens the log, replaying whatever is in it over the files.  Read
+     * only, the images are only kept in memory, see wrap().
+     */
+    WriteAheadLog(File file, File[] paths, String mode, SdbmOptions options)
+	throws IOException {
+	this.file = file;
+	this.paths = paths;
+	this.writable = mode.equals("rw");
+	this.durability = options.getWriteAheadLog();
+	this.syncBytes = options.getWalSyncBytes();
+	this.checkpointBytes = options.getWalCheckpointBytes();
+	this.files = new WalBlockFile[paths.length];
+	for (int i=0;i<paths.length;i++) {
+	    recovered.add(new HashMap<Long,byte[]>());
+	}
+
+	if (file.length() > 0) {
+	    recover();
+	}
+	if (writable) {
+	    raf = new RandomAccessFile(file,"rw");
+	    channel = raf.getChannel();
+	    if (channel.size() > 0) {
+		replay();
+	    }
+	}
+    }
+
+    /**
+     * Reads the images of every complete record, later ones replacing
+     * earlier ones.
+     */
+    private void recover() throws IOException {
+	DataInputStream in = new DataInputStream
+	    (new BufferedInputStream(new FileInputStream(file),65536));
+	try {
+	    CRC32 crc = new CRC32();
+	    for (;;) {
+		byte[] b;
+		try {
+		    if (in.readInt() != MAGIC) {
+			break;
+		    }
+		    int len = in.readInt();
+		    long sum = in.readLong();
+		    if (len < 0 || len > file.length()) {
+			break;
+		    }
+		    b = new byte[len];
+		    in.readFully(b);
+		    crc.reset();
+		    crc.update(b,0,len);
+		    if (crc.getValue() != sum) {
+			break;
+		    }
+		} catch (EOFException e) {
+		    break;
+		}
+		DataInputStream rec = new DataInputStream
+		    (new ByteArrayInputStream(b));
+		while (rec.available() > 0) {
+		    int id = rec.readUnsignedByte();
+		    long pos = rec.readLong();
+		    byte[] img = new byte[rec.readInt()];
+		    rec.readFully(img);
+		    if (id >= paths.length) {
+			throw new SdbmException("Corrupt log "+file);
+		    }
+		    recovered.get(id).put(pos,img);
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Writes the recovered images to the files and empties the log.
+     */
+    private void replay() throws IOException {
+	for (int id=0;id<paths.length;id++) {
+	    Map<Long,byte[]> images = recovered.get(id);
+	    if (images.isEmpty()) {
+		continue;
+	    }
+	    BlockFile f = new RandomAccessBlockFile(paths[id],"rw");
+	    try {
+		for (Map.Entry<Long,byte[]> e : images.entrySet()) {
+		    byte[] img = e.getValue();
+		    f.write(e.getKey(),img,0,img.length);
+		}
+		f.force();
+	    } finally {
+		f.close();
+	    }
+	    images.clear();
+	}
+	truncate();
+    }
+
+    private void truncate() throws IOException {
+	channel.truncate(0);
+	channel.force(true);
+	length = 0;
+	unsynced = 0;
+    }
+
+    /**
+     * Forgets the files wrapped so far, they are being reopened.
+     */
+    void release() {
+	Arrays.fill(files,null);
+    }
+
+    /**
+     * @return f wrapped so that its writes go through the log.
+     */
+    BlockFile wrap(int id, BlockFile f, int blockSize) throws IOException {
+	WalBlockFile w = new WalBlockFile(f,blockSize);
+	w.seed(recovered.get(id));
+	files[id] = w;
+	return w;
+    }
+
+    /**
+     * Logs the blocks written since the last commit as one record.
+     * Depending on the durability they are then written to the files
+     * straight away or once the log is next forced.
+     */
+    void commit() throws IOException {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bos);
+	for (int id=0;id<files.length;id++) {
+	    WalBlockFile w = files[id];
+	    if (w == null) {
+		continue;
+	    }
+	    for (Map.Entry<Long,byte[]> e : w.staged.entrySet()) {
+		int len = w.imageLength(e.getKey());
+		out.writeByte(id);
+		out.writeLong(e.getKey());
+		out.writeInt(len);
+		out.write(e.getValue(),0,len);
+	    }
+	}
+	if (bos.size() == 0) {
+	    return;
+	}
+
+	CRC32 crc = new CRC32();
+	crc.update(bos.toByteArray(),0,bos.size());
+	ByteBuffer rec = ByteBuffer.allocate(HEADER + bos.size());
+	rec.putInt(MAGIC).putInt(bos.size()).putLong(crc.getValue());
+	rec.put(bos.toByteArray()).flip();
+	while (rec.hasRemaining()) {
+	    length += channel.write(rec,length);
+	}
+	unsynced += rec.capacity();
+
+	for (int id=0;id<files.length;id++) {
+	    WalBlockFile w = files[id];
+	    if (w != null) {
+		w.pending.putAll(w.staged);
+		w.staged.clear();
+	    }
+	}
+
+	if (durability != SdbmOptions.WAL_BATCH || unsynced >= syncBytes) {
+	    sync();
+	}
+	if (length >= checkpointBytes) {
+	    checkpoint();
+	}
+    }
+
+    /**
+     * Forces the log, then writes the blocks it covers to the files.
+     */
+    void sync() throws IOException {
+	if (!writable) {
+	    return;
+	}
+	if (unsynced > 0 && durability != SdbmOptions.WAL_NONE) {
+	    channel.force(false);
+	}
+	unsynced = 0;
+	for (int id=0;id<files.length;id++) {
+	    if (files[id] != null) {
+		files[id].apply();
+	    }
+	}
+    }
+
+    /**
+     * Makes the files hold everything that was committed, then empties
+     * the log.
+     */
+    void checkpoint() throws IOException {
+	if (!writable) {
+	    return;
+	}
+	sync();
+	for (int id=0;id<files.length;id++) {
+	    if (files[id] != null) {
+		files[id].force();
+	    }
+	}
+	truncate();
+    }
+
+    void close() throws IOException {
+	if (raf != null) {
+	    raf.close();
+	    raf = null;
+	}
+    }
+}
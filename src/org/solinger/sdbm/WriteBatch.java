@@ -0,0 +1,74 @@
+package org.solinger.sdbm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A set of puts and removes applied to an Sdbm as a unit by
+ * Sdbm.write().  Readers see either none or all of a batch, each page
+ * and directory block it touches is written once, and if a pair can't
+ * be inserted the changes already made are rolled back.  Only if the
+ * rollback fails too, say the page an old value goes back into is
+ * full, is a batch left partly applied, see Sdbm.write().
+ * <p>
+ * Only the last operation on a key counts, earlier ones are dropped as
+ * they are added.  Keys and values are copied, the caller may reuse its
+ * arrays.  A batch is not thread safe.
+ * <pre>
+ *   WriteBatch batch = db.newWriteBatch();
+ *   batch.put("a","1");
+ *   batch.remove("b");
+ *   db.write(batch);
+ * </pre>
+ */
+public class WriteBatch {
+
+    Charset charset;
+    // key -> new value, null to remove.  Keyed by content.
+    LinkedHashMap<ByteBuffer,byte[]> ops = new LinkedHashMap<ByteBuffer,byte[]>();
+
+    /**
+     * @param charset The encoding of the String methods.
+     * @see Sdbm#newWriteBatch
+     */
+    WriteBatch(Charset charset) {
+	this.charset = charset;
+    }
+
+    public WriteBatch put(byte[] key, byte[] value) {
+	if (value == null) {
+	    throw new NullPointerException();
+	}
+	ops.put(ByteBuffer.wrap(key.clone()),value.clone());
+	return this;
+    }
+
+    public WriteBatch put(String key, String value) {
+	return put(key.getBytes(charset),value.getBytes(charset));
+    }
+
+    public WriteBatch remove(byte[] key) {
+	ops.put(ByteBuffer.wrap(key.clone()),null);
+	return this;
+    }
+
+    public WriteBatch remove(String key) {
+	return remove(key.getBytes(charset));
+    }
+
+    /**
+     * @return the number of distinct keys touched by the batch.
+     */
+    public int size() {
+	return ops.size();
+    }
+
+    public boolean isEmpty() {
+	return ops.isEmpty();
+    }
+
+    public void clear() {
+	ops.clear();
+    }
+}
@@ -0,0 +1,62 @@
+package org.solinger.sdbm;
+
+import junit.framework.*;
+
+public class HashTest extends TestCase {
+
+    public HashTest(String name) {
+	super(name);
+    }
+
+    public void testSdbm() {
+	// the unrolled loop must give what the byte at a time one did.
+	java.util.Random rand = new java.util.Random(42);
+	for (int len=0;len<40;len++) {
+	    byte[] b = new byte[len];
+	    rand.nextBytes(b);
+	    int n = 0;
+	    for (int i=0;i<len;i++) {
+		n = b[i] + 65599 * n;
+	    }
+	    assertEquals(n,Hash.hash(b));
+	    assertEquals(n,HashFunction.SDBM.hash(b));
+	}
+    }
+
+    public void testMurmur3() {
+	assertEquals(0,murmur3(""));
+	assertEquals(0xb3dd93fa,murmur3("abc"));
+	assertEquals(0x248bfa47,murmur3("hello"));
+	assertEquals(0x2e4ff723,
+		     murmur3("The quick brown fox jumps over the lazy dog"));
+    }
+
+    public void testXxhash64() {
+	assertEquals(0xef46db3751d8e999L,xxhash64(""));
+	assertEquals(0xd24ec4f1a98c6e5bL,xxhash64("a"));
+	assertEquals(0x44bc2cf5ad770999L,xxhash64("abc"));
+	assertEquals(0x0b242d361fda71bcL,
+		     xxhash64("The quick brown fox jumps over the lazy dog"));
+	assertEquals((int) 0x0b242d361fda71bcL, HashFunction.XXHASH64.hash
+		     ("The quick brown fox jumps over the lazy dog".getBytes()));
+    }
+
+    public void testOffset() {
+	byte[] b = "xxhello".getBytes();
+	for (HashFunction f : HashFunction.values()) {
+	    assertEquals(f.hash("hello".getBytes()),f.hash(b,2,5));
+	    assertSame(f,HashFunction.forId(f.getId()));
+	}
+	assertNull(HashFunction.forId(-1));
+    }
+
+    private static int murmur3(String s) {
+	byte[] b = s.getBytes();
+	return Hash.murmur3(b,0,b.length);
+    }
+
+    private static long xxhash64(String s) {
+	byte[] b = s.getBytes();
+	return Hash.xxhash64(b,0,b.length);
+    }
+}
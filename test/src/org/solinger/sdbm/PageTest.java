@@ -118,6 +118,66 @@ public class PageTest extends TestCase {
 	}
     }
 
+    public void testGetInto() {
+	Page p = new Page(1024);
+	p.put("foo".getBytes(),"barbaz".getBytes());
+
+	java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(8);
+	out.put((byte) 'x');
+	assertEquals(6,p.get("foo".getBytes(),0,3,out));
+	assertEquals(7,out.position());
+	assertEquals("xbarbaz",new String(out.array(),0,7));
+
+	// no room, nothing copied
+	assertEquals(6,p.get("foo".getBytes(),0,3,out));
+	assertEquals(7,out.position());
+
+	assertEquals(-1,p.get("fo".getBytes(),0,2,out));
+    }
+
+    public void testOverflowFlag() {
+	Page p = new Page(1024);
+	p.put("a".getBytes(),"1".getBytes());
+	byte[] ref = "12345678".getBytes();
+	p.put("b".getBytes(),0,1,ref,0,ref.length,true);
+	p.put("c".getBytes(),"3".getBytes());
+	assertFalse(p.isOverflow(0));
+	assertTrue(p.isOverflow(1));
+	assertFalse(p.isOverflow(2));
+
+	// moving the pairs down keeps the flag where it belongs.
+	p.remove("a".getBytes());
+	assertTrue(p.isOverflow(0));
+	assertFalse(p.isOverflow(1));
+	assertEquals("12345678",new String(p.get("b".getBytes())));
+
+	Page q = new Page(1024);
+	p.split(q,1);
+	Page b = (Hash.hash("b".getBytes()) & 1) != 0 ? q : p;
+	assertTrue(b.isOverflow(b.indexOfValue("b".getBytes())/2));
+    }
+
+    public void testFingerprints() {
+	Page p = fillPage(1024);
+	HashFunction hf = HashFunction.MURMUR3;
+	for (int i=0;i<p.size()+10;i++) {
+	    byte[] key = (""+i).getBytes();
+	    assertEquals(p.indexOfValue(key),
+			 p.indexOfValue(key,0,key.length,hf.hash(key),hf));
+	}
+
+	// changes drop the hashes.
+	byte[] key = "5".getBytes();
+	p.remove(key);
+	assertEquals(-1,p.indexOfValue(key,0,key.length,hf.hash(key),hf));
+	byte[] last = (""+(p.size()-1)).getBytes();
+	assertEquals(p.indexOfValue(last),
+		     p.indexOfValue(last,0,last.length,hf.hash(last),hf));
+	p.put(key,key);
+	assertEquals(p.indexOfValue(key),
+		     p.indexOfValue(key,0,key.length,hf.hash(key),hf));
+    }
+
     public void testSmallPage() {
 	
     }
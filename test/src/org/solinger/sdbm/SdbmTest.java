@@ -1,8 +1,29 @@
 package org.solinger.sdbm;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import java.util.function.BiConsumer;
 
 import org.solinger.sdbm.Sdbm;
 
@@ -91,6 +112,1069 @@ public class SdbmTest extends TestCase {
     }
 
 
+    public void testMappedEngine() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	SdbmOptions mapped = new SdbmOptions().
+	    setIoEngine(SdbmOptions.IO_MAPPED);
+
+	Sdbm sdbm = new Sdbm(dir,"mapped","rw",mapped);
+	sdbm.clear();
+	for (int i=0; i<20000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	sdbm.remove("key" + pad(42));
+	sdbm.close();
+
+	// the mapped files must be readable by the plain engine and back.
+	sdbm = new Sdbm(dir,"mapped","r");
+	assertEquals(19999, sdbm.size());
+	assertEquals("val" + pad(7), sdbm.get("key" + pad(7)));
+	assertNull(sdbm.get("key" + pad(42)));
+	sdbm.close();
+
+	sdbm = new Sdbm(dir,"mapped","r",mapped);
+	assertEquals(19999, sdbm.size());
+	for (int i=0; i<20000; i++) {
+	    String val = sdbm.get("key" + pad(i));
+	    assertEquals(i == 42 ? null : "val" + pad(i), val);
+	}
+	sdbm.close();
+    }
+
+    public void testWriteBackCache() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	// tiny caches so that dirty blocks get evicted all the time.
+	SdbmOptions opts = new SdbmOptions().setPageCacheSize(3).
+	    setDirCacheSize(1).setWriteBack(true);
+
+	Sdbm sdbm = new Sdbm(dir,"writeback","rw",opts);
+	sdbm.clear();
+	for (int i=0; i<5000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<5000; i++) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	}
+	int n = 0;
+	for (Enumeration en=sdbm.keys();en.hasMoreElements();n++) {
+	    en.nextElement();
+	}
+	assertEquals(5000, n);
+
+	CacheStats stats = sdbm.getPageCacheStats();
+	assertEquals(3, stats.getCapacity());
+	assertTrue(stats.getHits() > 0);
+	assertTrue(stats.getEvictions() > 0);
+	sdbm.close();
+
+	sdbm = new Sdbm(dir,"writeback","r");
+	assertEquals(5000, sdbm.size());
+	for (int i=0; i<5000; i++) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	}
+	sdbm.close();
+    }
+
+    public void testOffHeapCache() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	// room for 64 pages off the heap, but only 2 on it.
+	SdbmOptions opts = new SdbmOptions().setPageCacheSize(2).
+	    setWriteBack(true).setOffHeapCacheSize(64 * 1024);
+
+	Sdbm sdbm = new Sdbm(dir,"offheap","rw",opts);
+	sdbm.clear();
+	for (int i=0; i<10000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<10000; i+=2) {
+	    sdbm.remove("key" + pad(i));
+	}
+	for (int i=0; i<10000; i++) {
+	    assertEquals(i % 2 == 0 ? null : "val" + pad(i),
+			 sdbm.get("key" + pad(i)));
+	}
+	assertEquals(5000, sdbm.stream().count());
+
+	CacheStats stats = sdbm.getOffHeapCacheStats();
+	assertEquals(64, stats.getCapacity());
+	assertEquals(64, stats.getSize());
+	assertTrue(stats.getHits() > 0);
+	assertTrue(stats.getEvictions() > 0);
+
+	// readers recycling each other's frames mustn't see them change.
+	final Sdbm db = sdbm;
+	final Throwable[] failure = new Throwable[1];
+	Thread[] readers = new Thread[4];
+	for (int t=0; t<readers.length; t++) {
+	    final int first = 2 * t + 1;
+	    readers[t] = new Thread() {
+		    public void run() {
+			try {
+			    List<byte[]> keys = new ArrayList<byte[]>();
+			    for (int i=first; i<10000; i+=8) {
+				if (!("val" + pad(i)).equals(db.get("key" + pad(i)))) {
+				    throw new Exception("lost key" + pad(i));
+				}
+				keys.add(("key" + pad(i)).getBytes("UTF-8"));
+			    }
+			    List<byte[]> vals = db.getAll(keys);
+			    for (int i=0; i<keys.size(); i++) {
+				String k = new String(keys.get(i),"UTF-8");
+				if (!("val" + k.substring(3)).equals(new String(vals.get(i),"UTF-8"))) {
+				    throw new Exception("getAll lost " + k);
+				}
+			    }
+			} catch (Throwable e) {
+			    synchronized (failure) {
+				failure[0] = e;
+			    }
+			}
+		    }
+		};
+	    readers[t].start();
+	}
+	for (int t=0; t<readers.length; t++) {
+	    readers[t].join();
+	}
+	if (failure[0] != null) {
+	    fail(failure[0].toString());
+	}
+
+	// the copy replaces the files, nothing old may be left over.
+	sdbm.compact();
+	for (int i=1; i<10000; i+=2) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	}
+	sdbm.clear();
+	assertNull(sdbm.get("key" + pad(1)));
+	sdbm.close();
+    }
+
+    public void testFrameRecycling() throws Exception
+    {
+	File f = new File(System.getProperty("java.io.tmpdir"),"frames.pag");
+	f.delete();
+	BlockFile file = new RandomAccessBlockFile(f,"rw");
+	byte[] b = new byte[1024];
+	for (int i=0; i<4; i++) {
+	    Arrays.fill(b,(byte) (i + 1));
+	    file.write(i * 1024L,b,0,b.length);
+	}
+	// a single frame, so that every miss evicts the last page.
+	BlockCache cache = new BlockCache(file,1024,1,false,false,
+					  new SlabStore(1024,4 * 1024));
+	Page p = cache.get(0);
+	Page q = cache.get(1);
+	cache.release(q);
+	Page r = cache.get(2);
+	cache.release(r);
+	// a slab hit, read into the frame of 1, which was let go.
+	Page s = cache.get(0);
+	assertSame(q, s);
+	assertEquals(0, s.bno);
+	assertEquals(1, s.pag[0]);
+	// and a miss into the one of 2.
+	assertSame(r, cache.get(3));
+	assertEquals(4, r.pag[0]);
+	// 0 was evicted while held, it is never read over.
+	assertNotSame(p, q);
+	assertNotSame(p, r);
+	assertEquals(0, p.bno);
+	assertEquals(1, p.pag[0]);
+	file.close();
+	f.delete();
+    }
+
+    public void testConcurrentReaders() throws Exception
+    {
+	final Sdbm sdbm = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+				   "concurrent","rw");
+	sdbm.clear();
+	for (int i=0; i<2000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+
+	// readers check the old keys while the main thread splits pages
+	// under them adding new ones.
+	final Throwable[] failure = new Throwable[1];
+	Thread[] readers = new Thread[4];
+	for (int t=0; t<readers.length; t++) {
+	    readers[t] = new Thread() {
+		    public void run() {
+			try {
+			    for (int i=0; i<20000; i++) {
+				int k = i % 2000;
+				if (!("val" + pad(k)).equals(sdbm.get("key" + pad(k)))) {
+				    throw new Exception("lost key" + pad(k));
+				}
+			    }
+			} catch (Throwable e) {
+			    synchronized (failure) {
+				failure[0] = e;
+			    }
+			}
+		    }
+		};
+	    readers[t].start();
+	}
+	for (int i=2000; i<8000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int t=0; t<readers.length; t++) {
+	    readers[t].join();
+	}
+	if (failure[0] != null) {
+	    fail(failure[0].toString());
+	}
+	assertEquals(8000, sdbm.size());
+	sdbm.close();
+    }
+
+    public void testAsync() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"async","rw");
+	sdbm.clear();
+	AsyncSdbm async = new AsyncSdbm(sdbm);
+	List<CompletableFuture<String>> puts =
+	    new ArrayList<CompletableFuture<String>>();
+	for (int i=0; i<2000; i++) {
+	    puts.add(async.putAsync("key" + pad(i), "val" + pad(i)));
+	}
+	for (int i=0; i<puts.size(); i++) {
+	    assertNull(puts.get(i).get());
+	}
+	assertEquals(2000, sdbm.size());
+	assertEquals("val" + pad(7), async.getAsync("key" + pad(7)).get());
+
+	List<byte[]> keys = new ArrayList<byte[]>();
+	for (int i=0; i<3000; i+=3) {
+	    keys.add(("key" + pad(i)).getBytes());
+	}
+	List<byte[]> values = async.multiGet(keys).get();
+	assertEquals(1000, values.size());
+	for (int i=0; i<values.size(); i++) {
+	    if (i * 3 < 2000) {
+		assertEquals("val" + pad(i * 3), new String(values.get(i)));
+	    } else {
+		assertNull(values.get(i));
+	    }
+	}
+	async.close();
+
+	// failures come back through the future.
+	ExecutorService pool = Executors.newSingleThreadExecutor();
+	async = new AsyncSdbm(sdbm,pool);
+	try {
+	    async.getAsync((String) null).get();
+	    fail("looked up null");
+	} catch (ExecutionException e) {
+	    assertTrue(e.getCause() instanceof NullPointerException);
+	}
+	pool.shutdown();
+	sdbm.close();
+    }
+
+    public void testGetAll() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	// a small cache, so that most pages are read, some together.
+	Sdbm sdbm = new Sdbm(dir,"getall","rw",
+			     new SdbmOptions().setPageCacheSize(8));
+	sdbm.clear();
+	for (int i=0; i<20000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	List<byte[]> keys = new ArrayList<byte[]>();
+	for (int i=0; i<30000; i+=7) {
+	    keys.add(("key" + pad(i)).getBytes());
+	}
+	List<byte[]> values = sdbm.getAll(keys);
+	assertEquals(keys.size(), values.size());
+	for (int i=0; i<keys.size(); i++) {
+	    byte[] v = values.get(i);
+	    if (i * 7 < 20000) {
+		assertEquals("val" + pad(i * 7), new String(v));
+	    } else {
+		assertNull(v);
+	    }
+	}
+	// the same key twice gets its value twice.
+	keys.add(keys.get(1).clone());
+	values = sdbm.getAll(keys);
+	assertEquals("val" + pad(7), new String(values.get(keys.size() - 1)));
+	assertTrue(sdbm.getAll(new ArrayList<byte[]>()).isEmpty());
+	sdbm.close();
+    }
+
+    public void testScan() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	// 4 pages a read, read ahead, and pages newer than the file.
+	SdbmOptions opts = new SdbmOptions().setScanBufferSize(4096).
+	    setScanReadAhead(true).setWriteBack(true).setPageCacheSize(16);
+	final Sdbm sdbm = new Sdbm(dir,"scan","rw",opts);
+	sdbm.clear();
+	for (int i=0; i<20000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	int n = 0;
+	for (Enumeration en=sdbm.keys();en.hasMoreElements();n++) {
+	    String key = (String) en.nextElement();
+	    // changes behind the read ahead must be seen.
+	    sdbm.put(key, "new" + key.substring(3));
+	}
+	assertEquals(20000, n);
+	final int[] count = new int[1];
+	sdbm.forEach(new BiConsumer<ByteBuffer,ByteBuffer>() {
+		public void accept(ByteBuffer k, ByteBuffer v) {
+		    assertEquals('n', (char) v.get(v.position()));
+		    count[0]++;
+		}
+	    });
+	assertEquals(20000, count[0]);
+	assertEquals(20000, sdbm.parallelStream().count());
+
+	for (int i=0; i<20000; i+=2) {
+	    sdbm.remove("key" + pad(i));
+	}
+	sdbm.compact();
+	assertEquals(10000, sdbm.size());
+	assertEquals("new" + pad(1), sdbm.get("key" + pad(1)));
+	sdbm.close();
+    }
+
+    public void testSortedIndex() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	SdbmOptions opts = new SdbmOptions().setSortedIndex(true);
+	Sdbm sdbm = new Sdbm(dir,"sorted","rw",opts);
+	sdbm.clear();
+	// added out of order, in 10 groups of 1000.
+	for (int i=9999; i>=0; i--) {
+	    sdbm.put("g" + (i % 10) + "/" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<10000; i+=30) {
+	    sdbm.remove("g" + (i % 10) + "/" + pad(i));
+	}
+	sdbm.close();
+	assertTrue(new File(dir,"sorted" + Sdbm.IDXEXT).exists());
+
+	// from the .idx file this time.
+	sdbm = new Sdbm(dir,"sorted","rw",opts);
+	Iterator<Map.Entry<byte[],byte[]>> it =
+	    sdbm.prefixScan("g3/".getBytes());
+	int n = 0;
+	String last = "";
+	while (it.hasNext()) {
+	    Map.Entry<byte[],byte[]> e = it.next();
+	    String key = new String(e.getKey());
+	    assertTrue(key.startsWith("g3/"));
+	    assertTrue(key.compareTo(last) > 0);
+	    assertEquals("val" + key.substring(3), new String(e.getValue()));
+	    last = key;
+	    n++;
+	}
+	assertEquals(1000, n);
+
+	n = 0;
+	for (it = sdbm.range("g0/".getBytes(),"g2".getBytes()); it.hasNext(); n++) {
+	    it.next();
+	}
+	// every third key of g0 was removed.
+	assertEquals(2000 - 334, n);
+	sdbm.put("g3/x", "x");
+	sdbm.remove("g3/" + pad(3));
+	n = 0;
+	for (it = sdbm.prefixScan("g3/".getBytes()); it.hasNext(); n++) {
+	    last = new String(it.next().getKey());
+	}
+	assertEquals(1000, n);
+	assertEquals("g3/x", last);
+	assertFalse(sdbm.prefixScan("h".getBytes()).hasNext());
+	sdbm.close();
+
+	try {
+	    new Sdbm(dir,"sorted","r").range(null,null);
+	    fail("range without an index");
+	} catch (IllegalStateException e) {
+	}
+
+	// changes to 10 keys of 8 bytes in memory, the rest in the run.
+	opts.setSortedIndexLimit(10 * KeyIndex.cost(8));
+	sdbm = new Sdbm(dir,"sortedlimit","rw",opts);
+	sdbm.clear();
+	for (int i=4999; i>=0; i--) {
+	    sdbm.put("k" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<5000; i+=3) {
+	    sdbm.remove("k" + pad(i));
+	}
+	assertEquals(3333, ordered(sdbm.range(null,null)));
+	// 100 to 199 less the 33 multiples of 3.
+	byte[] from = ("k" + pad(100)).getBytes();
+	byte[] to = ("k" + pad(200)).getBytes();
+	assertEquals(67, ordered(sdbm.range(from,to)));
+	sdbm.close();
+
+	// the run written by close().
+	sdbm = new Sdbm(dir,"sortedlimit","rw",opts);
+	assertEquals(67, ordered(sdbm.range(from,to)));
+	sdbm.put("k" + pad(102), "again");
+	sdbm.remove("k" + pad(101));
+	assertEquals(67, ordered(sdbm.range(from,to)));
+	sdbm.close();
+
+	// rebuilt from the pages in parts of 10 keys, as after a crash.
+	File metaFile = new File(dir,"sortedlimit" + Sdbm.METAEXT);
+	Meta meta = Meta.read(metaFile);
+	meta.clean = false;
+	meta.write(metaFile);
+	sdbm = new Sdbm(dir,"sortedlimit","r",opts);
+	assertEquals(3333, ordered(sdbm.range(null,null)));
+	it = sdbm.range(from,to);
+	assertEquals("k" + pad(100), new String(it.next().getKey()));
+	assertEquals("k" + pad(102), new String(it.next().getKey()));
+	sdbm.close();
+    }
+
+    /**
+     * @return the number of pairs of it, checking they are in order.
+     */
+    private int ordered(Iterator<Map.Entry<byte[],byte[]>> it)
+    {
+	int n = 0;
+	byte[] last = null;
+	while (it.hasNext()) {
+	    byte[] key = it.next().getKey();
+	    assertTrue(last == null || KeyIndex.ORDER.compare(last, key) < 0);
+	    last = key;
+	    n++;
+	}
+	return n;
+    }
+
+    public void testCorruptPage() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"corrupt","rw");
+	sdbm.clear();
+	sdbm.put("key", "val");
+	sdbm.close();
+
+	// more pairs than a page can hold.
+	RandomAccessFile raf =
+	    new RandomAccessFile(new File(dir,"corrupt" + Sdbm.PAGEXT),"rw");
+	raf.write(new byte[] {(byte) 0xff, (byte) 0x7f});
+	raf.close();
+
+	sdbm = new Sdbm(dir,"corrupt","rw");
+	try {
+	    sdbm.put("key", "new");
+	    fail("put into a corrupt page");
+	} catch (SdbmException e) {
+	}
+	sdbm.close();
+    }
+
+    public void testBinary() throws Exception
+    {
+	Sdbm sdbm = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+			     "binary","rw");
+	sdbm.clear();
+
+	byte[] key = new byte[] {0, (byte) 0xff, 0, (byte) 0x80};
+	byte[] val = new byte[] {(byte) 0xc3, 0x28, 0};
+	assertNull(sdbm.put(key,val));
+	assertTrue(Arrays.equals(val,sdbm.get(key)));
+
+	// the same key in the middle of a larger array, and off heap.
+	byte[] wide = new byte[] {9, 0, (byte) 0xff, 0, (byte) 0x80, 9};
+	assertTrue(sdbm.containsKey(wide,1,4));
+	ByteBuffer direct = ByteBuffer.allocateDirect(4);
+	direct.put(key).flip();
+	assertTrue(Arrays.equals(val,sdbm.get(direct)));
+	assertEquals(0, direct.position());
+
+	assertTrue(Arrays.equals(val,sdbm.remove(wide,1,4)));
+	assertFalse(sdbm.containsKey(key));
+	assertEquals(0, sdbm.size());
+
+	// PAIRMAX counts bytes, not chars.
+	StringBuffer sb = new StringBuffer();
+	for (int i=0; i<Sdbm.PAIRMAX/2; i++) {
+	    sb.append('\u00e9');
+	}
+	try {
+	    sdbm.put(sb.toString(), "v");
+	    fail("Should have thrown SdbmException");
+	} catch (SdbmException e) {
+	    // cool
+	}
+	sdbm.put("\u00e9t\u00e9", "\u00e9t\u00e9");
+	assertEquals("\u00e9t\u00e9", sdbm.get("\u00e9t\u00e9"));
+	sdbm.close();
+    }
+
+    public void testWriteBatch() throws Exception
+    {
+	Sdbm sdbm = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+			     "batch","rw");
+	sdbm.clear();
+	for (int i=0; i<100; i++) {
+	    sdbm.put("key" + pad(i), "old" + pad(i));
+	}
+
+	WriteBatch batch = sdbm.newWriteBatch();
+	for (int i=0; i<5000; i++) {
+	    batch.put("key" + pad(i), "val" + pad(i));
+	}
+	batch.remove("key" + pad(7));
+	batch.put("key" + pad(8), "first").put("key" + pad(8), "last");
+	assertEquals(5000, batch.size());
+
+	long writes = sdbm.getPageCacheStats().getWrites();
+	sdbm.write(batch);
+	// one write per page, there are far fewer pages than changes.
+	assertTrue(sdbm.getPageCacheStats().getWrites() - writes < 500);
+	assertEquals(4999, sdbm.size());
+	assertNull(sdbm.get("key" + pad(7)));
+	assertEquals("last", sdbm.get("key" + pad(8)));
+	assertEquals("val" + pad(99), sdbm.get("key" + pad(99)));
+
+	// a pair that is too big fails the whole batch up front.
+	batch.clear();
+	batch.put("key" + pad(1), "new");
+	batch.put(new String(new char[Sdbm.PAIRMAX]), "huge");
+	try {
+	    sdbm.write(batch);
+	    fail("Should have thrown SdbmException");
+	} catch (SdbmException e) {
+	    // cool
+	}
+	assertEquals("val" + pad(1), sdbm.get("key" + pad(1)));
+	sdbm.close();
+
+	sdbm = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+			 "batch","r");
+	assertEquals(4999, sdbm.size());
+	for (int i=0; i<5000; i++) {
+	    String val = sdbm.get("key" + pad(i));
+	    assertEquals(i == 7 ? null : i == 8 ? "last" : "val" + pad(i), val);
+	}
+	sdbm.close();
+    }
+
+    public void testBulkLoad() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	// all in memory, then spilled to partitions.
+	long[] limits = new long[] {Long.MAX_VALUE, 100000};
+	for (int l=0; l<limits.length; l++) {
+	    BulkLoader loader = new BulkLoader(dir,"bulk").
+		setMemoryLimit(limits[l]);
+	    for (int i=0; i<20000; i++) {
+		loader.add("key" + pad(i), "old" + pad(i));
+	    }
+	    for (int i=0; i<20000; i++) {
+		loader.add("key" + pad(i), "val" + pad(i));
+	    }
+	    assertEquals(20000, loader.build());
+
+	    Sdbm sdbm = new Sdbm(dir,"bulk","rw");
+	    assertEquals(20000, sdbm.size());
+	    for (int i=0; i<20000; i++) {
+		assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	    }
+	    // and it keeps growing the normal way.
+	    for (int i=20000; i<30000; i++) {
+		sdbm.put("key" + pad(i), "val" + pad(i));
+	    }
+	    for (int i=0; i<30000; i+=7) {
+		assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	    }
+	    int n = 0;
+	    for (Enumeration en=sdbm.keys();en.hasMoreElements();n++) {
+		en.nextElement();
+	    }
+	    assertEquals(30000, n);
+	    sdbm.close();
+	}
+	assertFalse(new File(dir,"bulk" + BulkLoader.SPILLEXT + "0").exists());
+    }
+
+    public void testCompact() throws Exception
+    {
+	final Sdbm sdbm = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+				   "compact","rw");
+	sdbm.clear();
+	for (int i=0; i<20000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<20000; i++) {
+	    if (i % 10 != 0) {
+		sdbm.remove("key" + pad(i));
+	    }
+	}
+
+	// readers go on while the copy is made.
+	final Throwable[] failure = new Throwable[1];
+	Thread reader = new Thread() {
+		public void run() {
+		    try {
+			for (int i=0; i<20000; i+=10) {
+			    if (!("val" + pad(i)).equals(sdbm.get("key" + pad(i)))) {
+				throw new Exception("lost key" + pad(i));
+			    }
+			}
+		    } catch (Throwable e) {
+			failure[0] = e;
+		    }
+		}
+	    };
+	reader.start();
+	long reclaimed = sdbm.compact();
+	reader.join();
+	if (failure[0] != null) {
+	    fail(failure[0].toString());
+	}
+	assertTrue(reclaimed > 0);
+	assertEquals(2000, sdbm.size());
+
+	sdbm.put("new", "one");
+	for (int i=0; i<20000; i+=10) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	}
+	sdbm.close();
+
+	Sdbm reopened = new Sdbm(new File(System.getProperty("java.io.tmpdir")),
+				 "compact","r");
+	assertEquals(2001, reopened.size());
+	assertEquals("one", reopened.get("new"));
+	reopened.close();
+
+	// a crash after the copy was committed to and the .pag moved:
+	// the next open moves the rest.
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	BulkLoader loader = new BulkLoader(dir,"compactcopy",new SdbmOptions());
+	for (int i=0; i<500; i++) {
+	    loader.add(("copy" + pad(i)).getBytes(), ("val" + pad(i)).getBytes());
+	}
+	loader.build();
+	new File(dir,"compactcopy" + Sdbm.METAEXT).delete();
+	File metaFile = new File(dir,"compact" + Sdbm.METAEXT);
+	Meta meta = Meta.read(metaFile);
+	meta.clean = false;
+	meta.write(metaFile);
+	DataOutputStream out = new DataOutputStream
+	    (new FileOutputStream(new File(dir,"compact" + Sdbm.SWAPEXT)));
+	out.writeUTF("compactcopy");
+	out.writeBoolean(false);
+	out.close();
+	assertTrue(new File(dir,"compactcopy" + Sdbm.PAGEXT).
+		   renameTo(new File(dir,"compact" + Sdbm.PAGEXT)));
+	reopened = new Sdbm(dir,"compact","r");
+	assertEquals(500, reopened.size());
+	assertEquals("val" + pad(7), reopened.get("copy" + pad(7)));
+	reopened.close();
+	assertFalse(new File(dir,"compact" + Sdbm.SWAPEXT).exists());
+	assertFalse(new File(dir,"compactcopy" + Sdbm.DIREXT).exists());
+    }
+
+    public void testMeta() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"meta","rw");
+	sdbm.clear();
+	for (int i=0; i<3000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	sdbm.close();
+
+	File metaFile = new File(dir,"meta" + Sdbm.METAEXT);
+	Meta meta = Meta.read(metaFile);
+	assertTrue(meta.clean);
+	assertEquals(3000, meta.elementCount);
+
+	// left open, like a crash: the header stays unclean.
+	sdbm = new Sdbm(dir,"meta","rw");
+	sdbm.put("more", "stuff");
+	sdbm.flush();
+	assertFalse(Meta.read(metaFile).clean);
+	// replaced by a rename, nothing is left behind.
+	assertFalse(new File(metaFile.getPath() + ".tmp").exists());
+	Sdbm other = new Sdbm(dir,"meta","r");
+	assertEquals(3001, other.size());
+	other.close();
+	sdbm.close();
+	meta = Meta.read(metaFile);
+	assertTrue(meta.clean);
+	assertEquals(3001, meta.elementCount);
+
+	// a clean header is believed without looking at the pages.
+	meta.elementCount = 1234;
+	meta.write(metaFile);
+	sdbm = new Sdbm(dir,"meta","r");
+	assertEquals(1234, sdbm.size());
+	sdbm.close();
+
+	// a torn header is an error, not a database from before it.
+	RandomAccessFile raf = new RandomAccessFile(metaFile,"rw");
+	raf.seek(8);
+	raf.write(0x7f);
+	raf.close();
+	try {
+	    new Sdbm(dir,"meta","rw");
+	    fail("opened with a corrupt header");
+	} catch (SdbmException e) {
+	}
+	try {
+	    Meta.read(metaFile);
+	    fail("read a corrupt header");
+	} catch (SdbmException e) {
+	}
+	metaFile.delete();
+	sdbm = new Sdbm(dir,"meta","rw");
+	assertEquals(3001, sdbm.size());
+	sdbm.close();
+
+	// without it 4K pages don't pass for 1K ones.
+	sdbm = new Sdbm(dir,"meta4k","rw",new SdbmOptions().setPageSize(4096));
+	sdbm.clear();
+	for (int i=0; i<3000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	sdbm.close();
+	metaFile = new File(dir,"meta4k" + Sdbm.METAEXT);
+	metaFile.delete();
+	try {
+	    new Sdbm(dir,"meta4k","rw");
+	    fail("opened 4K pages as 1K ones");
+	} catch (SdbmException e) {
+	}
+	assertFalse(metaFile.exists());
+    }
+
+    public void testBloomFilter() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	SdbmOptions options = new SdbmOptions().setBloomFilter(2000, 0.01);
+	Sdbm sdbm = new Sdbm(dir,"bloom","rw",options);
+	sdbm.clear();
+	for (int i=0; i<2000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<2000; i++) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	    assertFalse(sdbm.containsKey("nokey" + pad(i)));
+	}
+	BloomStats stats = sdbm.getBloomStats();
+	assertEquals(2000, stats.getKeys());
+	assertEquals(4000, stats.getQueries());
+	assertEquals(2000, stats.getNegatives() + stats.getFalsePositives());
+	assertTrue(stats.getFalsePositives() < 100);
+	// a batch's own lookups are not queries.
+	WriteBatch batch = sdbm.newWriteBatch();
+	for (int i=0; i<100; i++) {
+	    batch.put("new" + pad(i), "val");
+	}
+	sdbm.write(batch);
+	assertEquals(4000, sdbm.getBloomStats().getQueries());
+	sdbm.close();
+
+	// written on close and read back on open.
+	File blmFile = new File(dir,"bloom" + Sdbm.BLMEXT);
+	assertTrue(blmFile.exists());
+	sdbm = new Sdbm(dir,"bloom","rw",options);
+	assertEquals(2100, sdbm.getBloomStats().getKeys());
+
+	// stale once modified, a reader has to rebuild it.
+	sdbm.put("more", "stuff");
+	sdbm.flush();
+	assertFalse(blmFile.exists());
+	Sdbm other = new Sdbm(dir,"bloom","r",options);
+	assertEquals("stuff", other.get("more"));
+	other.close();
+
+	// removed keys stay in until compact() builds it again.
+	for (int i=0; i<1000; i++) {
+	    sdbm.remove("key" + pad(i));
+	}
+	assertEquals(2101, sdbm.getBloomStats().getKeys());
+	assertNull(sdbm.get("key" + pad(0)));
+	sdbm.compact();
+	assertEquals(1101, sdbm.getBloomStats().getKeys());
+	assertNull(sdbm.get("key" + pad(0)));
+	assertEquals("val" + pad(1000), sdbm.get("key" + pad(1000)));
+	sdbm.close();
+
+	other = new Sdbm(dir,"bloom","r");
+	assertNull(other.getBloomStats());
+	other.close();
+    }
+
+    public void testMetrics() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"metrics","rw",
+			     new SdbmOptions().setMetrics(true));
+	sdbm.clear();
+	for (int i=0; i<3000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	for (int i=0; i<1000; i++) {
+	    sdbm.get("key" + pad(i));
+	    sdbm.containsKey("nokey" + pad(i));
+	    sdbm.remove("key" + pad(i));
+	}
+	SdbmMetrics m = sdbm.getMetrics();
+	assertEquals(2000, m.getSize());
+	assertEquals(3000, m.getPutLatency().getCount());
+	assertEquals(2000, m.getGetLatency().getCount());
+	assertEquals(1000, m.getRemoveLatency().getCount());
+	List<byte[]> keys = new ArrayList<byte[]>();
+	for (int i=0; i<100; i++) {
+	    keys.add(("key" + pad(i)).getBytes());
+	}
+	sdbm.getAll(keys);
+	m = sdbm.getMetrics();
+	assertEquals(2000, m.getGetLatency().getCount());
+	assertEquals(1, m.getGetAllLatency().getCount());
+	assertTrue(m.getPutLatency().getP99Nanos() >=
+		   m.getPutLatency().getMedianNanos());
+	assertTrue(m.getSplits() > 0);
+	assertEquals(m.getSplits(), m.getDirectoryWrites());
+	assertEquals(0, m.getSplitFailures());
+
+	// survive the caches being replaced.
+	long writes = m.getPageWrites();
+	sdbm.compact();
+	m = sdbm.getMetrics();
+	assertEquals(1, m.getCompactLatency().getCount());
+	assertTrue(m.getPageWrites() >= writes);
+
+	javax.management.ObjectName name = sdbm.registerMBean();
+	javax.management.MBeanServer server =
+	    java.lang.management.ManagementFactory.getPlatformMBeanServer();
+	assertEquals(new Integer(2000), server.getAttribute(name, "Size"));
+	assertNotNull(server.getAttribute(name, "GetLatency"));
+	sdbm.close();
+	assertFalse(server.isRegistered(name));
+
+	sdbm = new Sdbm(dir,"metrics","r");
+	assertNull(sdbm.getMetrics());
+	sdbm.close();
+    }
+
+    public void testWriteAheadLog() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	File pagFile = new File(dir,"wal" + Sdbm.PAGEXT);
+	File dirFile = new File(dir,"wal" + Sdbm.DIREXT);
+	File walFile = new File(dir,"wal" + Sdbm.WALEXT);
+	SdbmOptions options = new SdbmOptions().
+	    setWriteAheadLog(SdbmOptions.WAL_PER_OP);
+	Sdbm sdbm = new Sdbm(dir,"wal","rw",options);
+	sdbm.clear();
+	for (int i=0; i<2000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	sdbm.remove("key" + pad(0));
+	assertTrue(walFile.length() > 0);
+
+	// as if the machine went down with every block write torn: the
+	// log has them all since the last checkpoint.
+	zero(pagFile);
+	zero(dirFile);
+	Sdbm reopened = new Sdbm(dir,"wal","rw",options);
+	assertEquals(0, walFile.length());
+	assertEquals(1999, reopened.size());
+	assertNull(reopened.get("key" + pad(0)));
+	for (int i=1; i<2000; i++) {
+	    assertEquals("val" + pad(i), reopened.get("key" + pad(i)));
+	}
+
+	// batched, nothing reaches the database until the log is forced.
+	reopened.close();
+	options.setWriteAheadLog(SdbmOptions.WAL_BATCH).
+	    setWalSyncBytes(Long.MAX_VALUE);
+	sdbm = new Sdbm(dir,"wal","rw",options);
+	long length = pagFile.length();
+	WriteBatch batch = sdbm.newWriteBatch();
+	for (int i=2000; i<3000; i++) {
+	    batch.put("key" + pad(i), "val" + pad(i));
+	}
+	sdbm.write(batch);
+	assertEquals(length, pagFile.length());
+
+	// a reader sees the log, and a torn record at the end is ignored.
+	RandomAccessFile raf = new RandomAccessFile(walFile,"rw");
+	raf.seek(raf.length());
+	raf.writeInt(WriteAheadLog.MAGIC);
+	raf.writeInt(1000);
+	raf.close();
+	Sdbm other = new Sdbm(dir,"wal","r");
+	assertEquals(2999, other.size());
+	assertEquals("val" + pad(2500), other.get("key" + pad(2500)));
+	other.close();
+
+	sdbm.flush();
+	assertTrue(pagFile.length() > length);
+	sdbm.close();
+	assertEquals(0, walFile.length());
+
+	// the log is replayed even without asking for one.
+	sdbm = new Sdbm(dir,"wal","r");
+	assertEquals("val" + pad(2999), sdbm.get("key" + pad(2999)));
+	sdbm.close();
+    }
+
+    private static void zero(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f,"rw");
+	raf.write(new byte[(int) raf.length()]);
+	raf.close();
+    }
+
+    public void testStream() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"stream","rw",
+			     new SdbmOptions().setPageSize(4096));
+	sdbm.clear();
+	for (int i=0; i<5000; i++) {
+	    sdbm.put("key" + pad(i), "val" + pad(i));
+	}
+	byte[] big = new byte[20000];
+	big[100] = 1;
+	sdbm.put("big".getBytes(), big);
+
+	Map<String,String> seen = new ConcurrentHashMap<String,String>();
+	long n = sdbm.parallelStream().
+	    filter(e -> e.getValue().length < 100).
+	    peek(e -> seen.put(new String(e.getKey()),new String(e.getValue()))).
+	    count();
+	assertEquals(5000, n);
+	assertEquals(5000, seen.size());
+	assertEquals("val" + pad(1234), seen.get("key" + pad(1234)));
+	assertTrue(sdbm.stream().anyMatch
+		   (e -> Arrays.equals(big, e.getValue())));
+
+	final int[] count = new int[1];
+	final long[] bytes = new long[1];
+	sdbm.forEach((k, v) -> {
+		count[0]++;
+		bytes[0] += k.remaining() + v.remaining();
+		if (k.remaining() == 3) {
+		    assertEquals(1, v.get(v.position() + 100));
+		}
+	    });
+	assertEquals(5001, count[0]);
+	assertEquals(5000 * 20 + 3 + 20000, bytes[0]);
+
+	int m = 0;
+	for (Map.Entry<byte[],byte[]> e : sdbm) {
+	    m++;
+	}
+	assertEquals(5001, m);
+	sdbm.close();
+    }
+
+    public void testOverflow() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"overflow","rw",
+			     new SdbmOptions().setPageSize(8192));
+	sdbm.clear();
+	assertEquals(8192, sdbm.getPageSize());
+
+	// 5-50K values between small ones, split across pages.
+	Random rand = new Random(42);
+	byte[][] vals = new byte[300][];
+	for (int i=0; i<vals.length; i++) {
+	    vals[i] = new byte[i % 3 == 0 ? 10 : 5000 + rand.nextInt(45000)];
+	    rand.nextBytes(vals[i]);
+	    assertNull(sdbm.put(("key" + pad(i)).getBytes(), vals[i]));
+	}
+	for (int i=0; i<vals.length; i++) {
+	    assertTrue(Arrays.equals(vals[i],
+				     sdbm.get(("key" + pad(i)).getBytes())));
+	}
+	ByteBuffer out = ByteBuffer.allocate(50000);
+	assertEquals(vals[1].length, sdbm.get(("key" + pad(1)).getBytes(),0,10,out));
+	assertEquals(vals[1].length, out.position());
+
+	// freed chains are reused rather than growing the file.
+	long ovfLength = new File(dir,"overflow" + Sdbm.OVFEXT).length();
+	for (int i=0; i<vals.length; i+=2) {
+	    byte[] old = sdbm.remove(("key" + pad(i)).getBytes());
+	    assertTrue(Arrays.equals(vals[i],old));
+	}
+	for (int i=0; i<vals.length; i+=2) {
+	    sdbm.put(("key" + pad(i)).getBytes(), vals[i]);
+	}
+	assertEquals(ovfLength, new File(dir,"overflow" + Sdbm.OVFEXT).length());
+	sdbm.close();
+
+	// the page size comes from the header, whatever the options say.
+	sdbm = new Sdbm(dir,"overflow","rw");
+	assertEquals(8192, sdbm.getPageSize());
+	assertEquals(vals.length, sdbm.size());
+	int n = 0;
+	for (Enumeration en=sdbm.elements();en.hasMoreElements();n++) {
+	    en.nextElement();
+	}
+	assertEquals(vals.length, n);
+	for (int i=0; i<vals.length; i+=3) {
+	    sdbm.remove(("key" + pad(i)).getBytes());
+	}
+	assertTrue(sdbm.compact() > 0);
+	for (int i=0; i<vals.length; i++) {
+	    byte[] val = sdbm.get(("key" + pad(i)).getBytes());
+	    assertTrue(i % 3 == 0 ? val == null : Arrays.equals(vals[i],val));
+	}
+	sdbm.close();
+    }
+
+    public void testHashFunction() throws Exception
+    {
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	Sdbm sdbm = new Sdbm(dir,"murmur","rw",new SdbmOptions().
+			     setHashFunction(HashFunction.MURMUR3));
+	sdbm.clear();
+	for (int i=0; i<5000; i++) {
+	    sdbm.put("http://example.com/" + pad(i) + "/index.html", "val" + pad(i));
+	}
+	sdbm.close();
+
+	// the function comes from the header, whatever the options say.
+	sdbm = new Sdbm(dir,"murmur","rw");
+	assertSame(HashFunction.MURMUR3, sdbm.getHashFunction());
+	for (int i=0; i<5000; i++) {
+	    assertEquals("val" + pad(i),
+			 sdbm.get("http://example.com/" + pad(i) + "/index.html"));
+	}
+	sdbm.compact();
+	assertEquals("val" + pad(9),
+		     sdbm.get("http://example.com/" + pad(9) + "/index.html"));
+	sdbm.close();
+
+	BulkLoader loader = new BulkLoader(dir,"xxhash",new SdbmOptions().
+					 setHashFunction(HashFunction.XXHASH64));
+	for (int i=0; i<5000; i++) {
+	    loader.add("key" + pad(i), "val" + pad(i));
+	}
+	loader.build();
+	sdbm = new Sdbm(dir,"xxhash","r");
+	assertSame(HashFunction.XXHASH64, sdbm.getHashFunction());
+	for (int i=0; i<5000; i++) {
+	    assertEquals("val" + pad(i), sdbm.get("key" + pad(i)));
+	}
+	sdbm.close();
+    }
+
     private void startClock()
     {
         m_time = new Date().getTime();
@@ -0,0 +1,97 @@
+package org.solinger.sdbm;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Test ShardedSdbm.
+ */
+public class ShardedSdbmTest extends TestCase {
+
+    public ShardedSdbmTest(String name)
+    {
+	super(name);
+    }
+
+    public void testSharded() throws Exception
+    {
+	File tmp = new File(System.getProperty("java.io.tmpdir"));
+	File[] dirs = new File[] {new File(tmp,"shard0"), new File(tmp,"shard1")};
+	dirs[0].mkdirs();
+	dirs[1].mkdirs();
+	ShardedSdbm db = new ShardedSdbm(dirs,"sharded",4,"rw",new SdbmOptions());
+	db.clear();
+	for (int i=0; i<20000; i++) {
+	    db.put("key" + pad(i), "val" + pad(i));
+	}
+	assertEquals(20000, db.size());
+	for (int i=0; i<4; i++) {
+	    // roughly even, and each one has split.
+	    assertTrue(db.getShard(i).size() > 4000);
+	}
+	for (int i=0; i<20000; i++) {
+	    assertEquals("val" + pad(i), db.get("key" + pad(i)));
+	}
+	for (int i=0; i<20000; i+=2) {
+	    assertEquals("val" + pad(i), db.remove("key" + pad(i)));
+	}
+	assertEquals(10000, db.size());
+	db.compact();
+	assertEquals(10000, db.parallelStream().count());
+	assertFalse(db.containsKey("key" + pad(0)));
+	assertEquals("val" + pad(1), db.get("key" + pad(1)));
+	db.close();
+	assertTrue(new File(dirs[1],"sharded.3" + Sdbm.PAGEXT).exists());
+	// renamed into place, nothing is left aside.
+	assertTrue(new File(dirs[0],"sharded" + ShardedSdbm.SHARDSEXT).exists());
+	assertFalse(new File(dirs[0],"sharded" + ShardedSdbm.SHARDSEXT + ".tmp").exists());
+
+	try {
+	    new ShardedSdbm(dirs,"sharded",3,"rw",new SdbmOptions());
+	    fail("opened with the wrong number of shards");
+	} catch (SdbmException e) {
+	}
+
+	// a shard that can't be created leaves no name.shards behind.
+	File[] bad = new File[] {tmp, new File(tmp,"noshard")};
+	File count = new File(tmp,"badshard" + ShardedSdbm.SHARDSEXT);
+	count.delete();
+	try {
+	    new ShardedSdbm(bad,"badshard",2,"rw",new SdbmOptions());
+	    fail("opened a shard in a missing directory");
+	} catch (IOException e) {
+	}
+	assertFalse(count.exists());
+    }
+
+    public void testBulkLoad() throws Exception
+    {
+	File[] dirs = new File[] {new File(System.getProperty("java.io.tmpdir"))};
+	List<Map.Entry<byte[],byte[]>> pairs =
+	    new ArrayList<Map.Entry<byte[],byte[]>>();
+	for (int i=0; i<20000; i++) {
+	    pairs.add(new AbstractMap.SimpleEntry<byte[],byte[]>
+		      (("key" + pad(i)).getBytes(), ("val" + pad(i)).getBytes()));
+	}
+	assertEquals(20000, ShardedSdbm.bulkLoad(dirs,"shardbulk",3,
+						 new SdbmOptions(),100000,
+						 pairs.iterator()));
+	ShardedSdbm db = new ShardedSdbm(dirs,"shardbulk",3,"r",new SdbmOptions());
+	assertEquals(20000, db.size());
+	for (int i=0; i<20000; i+=3) {
+	    assertEquals("val" + pad(i), db.get("key" + pad(i)));
+	}
+	db.close();
+    }
+
+    private String pad(int i)
+    {
+	String s = "000000" + i;
+	return s.substring(s.length() - Math.max(7, ("" + i).length()));
+    }
+
+}